@@ -0,0 +1,112 @@
+package com.log4js3.logging;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+
+/**
+ * Read-only view over a batch of UTF-8 encoded log events staged in
+ * {@link ChunkedBuffer} chunks.  The view stays valid until the staging
+ * buffer is released, which happens once the batch has been published.
+ *
+ */
+public class ByteChunks {
+	static final int COPY_BUFFER_SIZE = 8192;
+
+	// Each view spans [0, limit) of its chunk; always duplicate before reading
+	private final List<ByteBuffer> views;
+	private final long length;
+
+	ByteChunks(List<ByteBuffer> views, long length) {
+		this.views = views;
+		this.length = length;
+	}
+
+	/**
+	 * @return the number of bytes in the batch
+	 */
+	public long length() {
+		return length;
+	}
+
+	/**
+	 * Writes the batch to a stream, e.g. a compressor, without materializing
+	 * it on the heap.
+	 *
+	 * @param out the stream to write to
+	 * @throws IOException if the stream fails
+	 */
+	public void writeTo(OutputStream out) throws IOException {
+		byte[] tmp = new byte[(int) Math.max(1, Math.min(COPY_BUFFER_SIZE, length))];
+		for (ByteBuffer view : views) {
+			ByteBuffer b = view.duplicate();
+			if (b.hasArray()) {
+				out.write(b.array(), b.arrayOffset() + b.position(), b.remaining());
+				continue;
+			}
+			while (b.hasRemaining()) {
+				int n = Math.min(tmp.length, b.remaining());
+				b.get(tmp, 0, n);
+				out.write(tmp, 0, n);
+			}
+		}
+	}
+
+	/**
+	 * @return a stream reading the batch
+	 */
+	public InputStream newInputStream() {
+		return new InputStream() {
+			private int index = 0;
+			private ByteBuffer b = views.isEmpty() ? null : views.get(0).duplicate();
+
+			private boolean advance() {
+				while (b != null && !b.hasRemaining())
+					b = ++index < views.size() ? views.get(index).duplicate() : null;
+				return b != null;
+			}
+
+			@Override
+			public int read() {
+				return advance() ? b.get() & 0xff : -1;
+			}
+
+			@Override
+			public int read(byte[] dst, int off, int len) {
+				if (len == 0) return 0;
+				if (!advance()) return -1;
+				int n = Math.min(len, b.remaining());
+				b.get(dst, off, n);
+				return n;
+			}
+		};
+	}
+
+	/**
+	 * Copies the batch to the heap.
+	 *
+	 * @return the UTF-8 bytes of the batch
+	 */
+	public byte[] toByteArray() {
+		byte[] res = new byte[(int) length];
+		int off = 0;
+		for (ByteBuffer view : views) {
+			ByteBuffer b = view.duplicate();
+			int n = b.remaining();
+			b.get(res, off, n);
+			off += n;
+		}
+		return res;
+	}
+
+	/**
+	 * Decodes the batch into a String, for consumers that need text.
+	 */
+	@Override
+	public String toString() {
+		return new String(toByteArray(), StandardCharsets.UTF_8);
+	}
+}
@@ -0,0 +1,70 @@
+package com.log4js3.logging;
+
+import java.nio.Buffer;
+import java.nio.ByteBuffer;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Pool of fixed-size, off-heap (direct) byte chunks used to stage log
+ * events.  Chunks are reused across batches.  At most maxChunks direct
+ * chunks are ever allocated; beyond that, chunks fall back to the heap
+ * and are dropped instead of pooled on release.
+ *
+ */
+public class ChunkPool {
+	private final int chunkSize;
+	private final int maxChunks;
+	private final ConcurrentLinkedQueue<ByteBuffer> free = new ConcurrentLinkedQueue<ByteBuffer>();
+	private final AtomicInteger allocated = new AtomicInteger();
+
+	/**
+	 * @param chunkSize size of each chunk in bytes
+	 * @param maxBytes cap on the off-heap memory held by the pool
+	 */
+	public ChunkPool(int chunkSize, long maxBytes) {
+		if (chunkSize <= 0)
+			throw new IllegalArgumentException("chunkSize must be positive");
+		this.chunkSize = chunkSize;
+		this.maxChunks = (int) Math.min(Integer.MAX_VALUE, maxBytes / chunkSize);
+	}
+
+	public int getChunkSize() {
+		return chunkSize;
+	}
+
+	/**
+	 * @return the number of off-heap chunks allocated so far
+	 */
+	public int getAllocatedChunks() {
+		return allocated.get();
+	}
+
+	/**
+	 * Takes a cleared chunk from the pool, allocating one if needed.
+	 *
+	 * @return a chunk ready to be written
+	 */
+	public ByteBuffer acquire() {
+		ByteBuffer b = free.poll();
+		if (b != null) {
+			// Through Buffer, so that it links on Java 8 when built with newer JDKs
+			((Buffer) b).clear();
+			return b;
+		}
+		if (allocated.incrementAndGet() <= maxChunks)
+			return ByteBuffer.allocateDirect(chunkSize);
+		allocated.decrementAndGet();
+		return ByteBuffer.allocate(chunkSize);
+	}
+
+	/**
+	 * Returns a chunk to the pool.  The chunk must no longer be used.
+	 *
+	 * @param chunk a chunk obtained from {@link #acquire()}
+	 */
+	public void release(ByteBuffer chunk) {
+		if (chunk.isDirect())
+			free.offer(chunk);
+	}
+}
@@ -0,0 +1,140 @@
+package com.log4js3.logging;
+
+import java.nio.Buffer;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.charset.CharsetEncoder;
+import java.nio.charset.CoderResult;
+import java.nio.charset.CodingErrorAction;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Growable staging buffer that stores log events as UTF-8 bytes in chunks
+ * taken from a {@link ChunkPool}, keeping the bulk of buffered events off
+ * the Java heap.  Not thread-safe; the owner serializes appends.
+ * <br>
+ * The chunks go back to the pool once the owner and everyone that
+ * {@link #retain() retained} the buffer released it, so snapshots can be
+ * read by other threads after the owner moved on.
+ *
+ */
+public class ChunkedBuffer {
+	private final ChunkPool pool;
+	private final List<ByteBuffer> chunks = new ArrayList<ByteBuffer>();
+	private final CharsetEncoder encoder = StandardCharsets.UTF_8.newEncoder()
+		.onMalformedInput(CodingErrorAction.REPLACE)
+		.onUnmappableCharacter(CodingErrorAction.REPLACE);
+	private ByteBuffer current;
+	private long length;
+	private final AtomicInteger refs = new AtomicInteger(1);
+
+	public ChunkedBuffer(ChunkPool pool) {
+		this.pool = pool;
+	}
+
+	/**
+	 * Appends the UTF-8 encoding of the text.
+	 *
+	 * @param s text to append
+	 */
+	public void append(CharSequence s) {
+		CharBuffer in = CharBuffer.wrap(s);
+		encoder.reset();
+		if (current == null) nextChunk();
+		// On overflow the chunk may keep a few bytes free when a multi-byte
+		// sequence does not fit; it is left short rather than split
+		for (;;) {
+			int before = current.position();
+			CoderResult r = encoder.encode(in, current, true);
+			length += current.position() - before;
+			if (!r.isOverflow()) break;
+			nextChunk();
+		}
+		for (;;) {
+			int before = current.position();
+			CoderResult r = encoder.flush(current);
+			length += current.position() - before;
+			if (!r.isOverflow()) break;
+			nextChunk();
+		}
+	}
+
+	/**
+	 * Appends bytes that are already UTF-8 encoded.  They may be split over
+	 * chunks.
+	 *
+	 * @param bytes source of the bytes
+	 * @param off offset of the first byte
+	 * @param len number of bytes
+	 */
+	public void append(byte[] bytes, int off, int len) {
+		if (current == null) nextChunk();
+		while (len > 0) {
+			if (!current.hasRemaining()) nextChunk();
+			int n = Math.min(len, current.remaining());
+			current.put(bytes, off, n);
+			off += n;
+			len -= n;
+			length += n;
+		}
+	}
+
+	private void nextChunk() {
+		current = pool.acquire();
+		chunks.add(current);
+	}
+
+	/**
+	 * @return the number of bytes appended
+	 */
+	public long length() {
+		return length;
+	}
+
+	/**
+	 * Takes a view of the bytes appended so far.  Later appends do not
+	 * change the view.
+	 *
+	 * @return the view
+	 */
+	public ByteChunks snapshot() {
+		// Chunks may be left short (see append), so each is viewed up to its
+		// own fill level
+		List<ByteBuffer> views = new ArrayList<ByteBuffer>(chunks.size());
+		for (ByteBuffer b : chunks) {
+			ByteBuffer view = b.duplicate();
+			// Through Buffer, so that it links on Java 8 when built with newer JDKs
+			((Buffer) view).flip();
+			views.add(view);
+		}
+		return new ByteChunks(views, length);
+	}
+
+	/**
+	 * Keeps the chunks from going back to the pool until a matching
+	 * {@link #release()}.
+	 *
+	 * @return this buffer
+	 */
+	public ChunkedBuffer retain() {
+		refs.incrementAndGet();
+		return this;
+	}
+
+	/**
+	 * Drops the owner's or a {@link #retain()}ed reference.  The last one
+	 * returns all chunks to the pool; neither this buffer nor its snapshots
+	 * may be used afterwards.
+	 */
+	public void release() {
+		if (refs.decrementAndGet() > 0) return;
+		for (ByteBuffer b : chunks)
+			pool.release(b);
+		chunks.clear();
+		current = null;
+		length = 0;
+	}
+}
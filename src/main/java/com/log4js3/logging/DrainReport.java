@@ -0,0 +1,33 @@
+package com.log4js3.logging;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Outcome of draining a {@link LoggingEventCache} on shutdown: which batches
+ * were shipped before the deadline and which were spilled to local files
+ * (or lost, when no spill directory is configured or spilling failed).
+ *
+ */
+public class DrainReport {
+	public final String cacheName;
+	public int shippedBatches;
+	public int failedBatches;
+	public int spilledBatches;
+	public long spilledBytes;
+	public int lostBatches;
+	public boolean timedOut;
+	public final List<File> spillFiles = new ArrayList<File>();
+
+	public DrainReport(String cacheName) {
+		this.cacheName = cacheName;
+	}
+
+	@Override
+	public String toString() {
+		return String.format("Drained %s: %d batches shipped, %d failed, %d spilled (%d bytes) to %s, %d lost%s",
+			cacheName, shippedBatches, failedBatches, spilledBatches, spilledBytes,
+			spillFiles, lostBatches, timedOut ? " (deadline reached)" : "");
+	}
+}
@@ -0,0 +1,83 @@
+package com.log4js3.logging;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.zip.GZIPOutputStream;
+
+import com.log4js3.logging.codec.TemplateEncoder;
+
+/**
+ * A batch in its final stored form: encoded as configured in the
+ * {@link PublishContext} and compressed.  Encoding happens once per batch and
+ * the bytes are shared by all destinations, which must not modify them.
+ *
+ */
+public class EncodedBatch {
+	public static final String CONTENT_TYPE_TEXT = "text/plain";
+	public static final String CONTENT_TYPE_BINARY = "application/octet-stream";
+	public static final String CONTENT_ENCODING_GZIP = "gzip";
+
+	public final byte[] bytes;
+	public final String contentType;
+	/** Content encoding of the bytes (e.g. "gzip"), or null if uncompressed */
+	public final String contentEncoding;
+
+	public EncodedBatch(byte[] bytes, String contentType, String contentEncoding) {
+		this.bytes = bytes;
+		this.contentType = contentType;
+		this.contentEncoding = contentEncoding;
+	}
+
+	/**
+	 * Encodes a batch given as text and/or off-heap chunks (the chunks, if
+	 * any, come first).
+	 *
+	 * @param context the context of the batch
+	 * @param text the logs of the batch, may be null or empty
+	 * @param chunks the logs of the batch staged off-heap, may be null
+	 * @return the encoded batch
+	 * @throws IOException if compression fails
+	 */
+	public static EncodedBatch encode(PublishContext context, String text, ByteChunks chunks)
+			throws IOException {
+		if (null != chunks && null != text && !text.isEmpty()) {
+			text = chunks.toString() + text;
+			chunks = null;
+		}
+		if (null == text) text = "";
+		byte[] bytes;
+		String contentType;
+		if (context.isTemplateEncoded()) {
+			bytes = new TemplateEncoder().encode(null == chunks ? text : chunks.toString());
+			contentType = CONTENT_TYPE_BINARY;
+		} else if (null != chunks) {
+			// Compress straight from the chunks, without a heap copy of the text
+			bytes = context.gzip ? gzip(chunks) : chunks.toByteArray();
+			return new EncodedBatch(bytes, CONTENT_TYPE_TEXT,
+				context.gzip ? CONTENT_ENCODING_GZIP : null);
+		} else {
+			bytes = text.getBytes(StandardCharsets.UTF_8);
+			contentType = CONTENT_TYPE_TEXT;
+		}
+		if (context.gzip)
+			return new EncodedBatch(gzip(bytes), contentType, CONTENT_ENCODING_GZIP);
+		return new EncodedBatch(bytes, contentType, null);
+	}
+
+	static byte[] gzip(ByteChunks data) throws IOException {
+		ByteArrayOutputStream buf = new ByteArrayOutputStream((int) Math.min(Integer.MAX_VALUE, data.length() / 4 + 64));
+		GZIPOutputStream out = new GZIPOutputStream(buf);
+		data.writeTo(out);
+		out.finish();
+		return buf.toByteArray();
+	}
+
+	static byte[] gzip(byte[] data) throws IOException {
+		ByteArrayOutputStream buf = new ByteArrayOutputStream();
+		GZIPOutputStream out = new GZIPOutputStream(buf);
+		out.write(data);
+		out.finish();
+		return buf.toByteArray();
+	}
+}
@@ -1,15 +1,40 @@
 package com.log4js3.logging;
 
-import java.util.concurrent.Callable;
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.CompletableFuture;
 import java.util.concurrent.ExecutionException;
 import java.util.concurrent.Executors;
 import java.util.concurrent.Future;
 import java.util.concurrent.ScheduledExecutorService;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
 
 /**
  * An event cache that buffers/collects events and publishes them in a
  * background thread when the buffer fills up.
+ * <br>
+ * When a {@link RolloverWindow} is configured, events are buffered per
+ * wall-clock window of their own time stamp, and every window is published
+ * to objects stamped with the window start.  A window is concluded once the
+ * clock passes its end plus a grace period for late events; events arriving
+ * later still are published to a separate object of the same window.
+ * <br>
+ * Every batch is tracked until it is stored.  {@link #close(long, TimeUnit, File)}
+ * drains within a deadline and spills batches that were not stored by then
+ * to local files, which {@link #replaySpill(File)} feeds back on the next
+ * start.  With {@link #setSpillDir(File)}, batches that fail before that
+ * are spilled as well; an open batch that fails is published again with
+ * the next flush of its window instead.
  *
  * @author Van Ly (vancly@hotmail.com)
  * @author Plamen Parvanov
@@ -18,6 +43,7 @@ import java.util.concurrent.TimeUnit;
 public class LoggingEventCache {
 	public static final String PUBLISH_THREAD_NAME =
 		"LoggingEventCache-publish-thread";
+	public static final String SPILL_SUFFIX = SpillFiles.SPILL_SUFFIX;
 
 	/**
 	 * Interface for a publishing collaborator
@@ -34,6 +60,17 @@ public class LoggingEventCache {
 		 */
 		PublishContext createContext(final String cacheName);
 
+		/**
+		 * Create a context for a batch of events belonging to a rollover
+		 * window.
+		 * @param cacheName the name for the batch of events
+		 * @param timeStamp the start of the window to stamp the batch with
+		 * @return a context for subsequent operations
+		 */
+		default PublishContext createContext(final String cacheName, long timeStamp) {
+			return createContext(cacheName);
+		}
+
 		/**
 		 * Start a batch of events with the given context.
 		 * @param ctx a context to reuse
@@ -49,6 +86,18 @@ public class LoggingEventCache {
 		 */
 		void publish(final PublishContext context, String log);
 
+		/**
+		 * Publish events staged off-heap in the batch
+		 *
+		 * @param context the context for this batch
+		 * @param logs the UTF-8 encoded logs to publish; only valid until
+		 * 	{@link #endPublish(PublishContext)} returns, or the future of
+		 * 	{@link #endPublishAsync(PublishContext)} completes
+		 */
+		default void publish(final PublishContext context, ByteChunks logs) {
+			publish(context, logs.toString());
+		}
+
 		/**
 		 * Concludes a publish batch.  Implementations should submit/commit
 		 * a batch and/or clean up resources in preparation for the next
@@ -57,10 +106,134 @@ public class LoggingEventCache {
 		 * @param context the context for this batch
 		 */
 		void endPublish(final PublishContext context);
+
+		/**
+		 * Concludes a publish batch like {@link #endPublish(PublishContext)},
+		 * without waiting for batches that are stored asynchronously.
+		 *
+		 * @param context the context for this batch
+		 * @return a future completed once the batch is stored
+		 */
+		default CompletableFuture<Void> endPublishAsync(final PublishContext context) {
+			endPublish(context);
+			return CompletableFuture.completedFuture(null);
+		}
+
+		/**
+		 * Spill the copies of batches that a destination cannot store to the
+		 * directory, instead of failing the batches.
+		 *
+		 * @param spillDir the spill directory, or null to fail such batches
+		 */
+		default void setSpillDir(File spillDir) {
+		}
+
+		/**
+		 * Publishes the copies spilled by an earlier instance again, each to
+		 * the destination it was spilled for.
+		 *
+		 * @param spillDir the spill directory
+		 * @return the number of copies replayed
+		 */
+		default int replaySpill(File spillDir) {
+			return 0;
+		}
+
+		/**
+		 * No more batches will be published.  Implementations should wait for
+		 * batches still in progress, up to the timeout, and release resources.
+		 * Copies not stored by then are spilled, if a spill directory is set.
+		 *
+		 * @param timeout maximum time to wait
+		 * @param unit unit of the timeout
+		 */
+		default void close(long timeout, TimeUnit unit) {
+		}
+	}
+
+	/**
+	 * Events buffered for one rollover window (or all events when not
+	 * rolling over).
+	 */
+	static class Window {
+		final long start;
+		final long end;
+		StringBuffer logBuffer;
+		ChunkedBuffer stagingBuffer;
+		int eventQueueLength = 0;
+		int flushedPos = 0;
+		volatile PublishContext reuseContext;
+		// Completed once the next batch of the window is stored or spilled
+		List<CompletableFuture<Void>> waiters = new ArrayList<CompletableFuture<Void>>();
+
+		Window(long start, long end, ChunkPool chunkPool) {
+			this.start = start;
+			this.end = end;
+			resetBuffer(chunkPool);
+		}
+
+		void resetBuffer(ChunkPool chunkPool) {
+			if (null == chunkPool)
+				logBuffer = new StringBuffer();
+			else
+				stagingBuffer = new ChunkedBuffer(chunkPool);
+		}
+
+		void append(String log) {
+			if (null == stagingBuffer)
+				logBuffer.append(log);
+			else
+				stagingBuffer.append(log);
+		}
+
+		void append(byte[] bytes, int off, int len) {
+			if (null == stagingBuffer)
+				logBuffer.append(new String(bytes, off, len, StandardCharsets.UTF_8));
+			else
+				stagingBuffer.append(bytes, off, len);
+		}
+	}
+
+	/**
+	 * A batch handed to the publisher, tracked until it is stored.
+	 */
+	static class Batch {
+		final Window window;
+		// The window buffer the batch was taken from
+		final Object buffer;
+		final String logs;
+		final ByteChunks chunks;
+		// Retained for the chunks until every destination read them
+		final ChunkedBuffer source;
+		final boolean keepOpen;
+		final CompletableFuture<Void> done = new CompletableFuture<Void>();
+		// An open batch is superseded by the next batch of its window, which
+		// republishes the same events and more
+		boolean superseded;
+		// Failed while draining; keeps its reference to the chunks until
+		// close() spilled them
+		boolean failedWhileDraining;
+		// Taken by close() to spill
+		boolean spilling;
+		// Of events added with addTracked(); includes those of the batches
+		// it supersedes
+		final List<CompletableFuture<Void>> waiters = new ArrayList<CompletableFuture<Void>>();
+
+		Batch(Window window, String logs, ChunkedBuffer source, boolean keepOpen) {
+			this.window = window;
+			this.buffer = null == source ? window.logBuffer : source;
+			this.logs = logs;
+			this.chunks = null == source ? null : source.snapshot();
+			this.source = null == source ? null : source.retain();
+			this.keepOpen = keepOpen;
+		}
 	}
 
 	private final String cacheName;
 	private final int capacity;
+	private final RolloverWindow rollover;
+	private final long rolloverGraceMillis;
+	private final ChunkPool chunkPool;
 
 	private final Object lock = new Object();
 
@@ -68,15 +241,19 @@ public class LoggingEventCache {
 	// we do not need the EVENTQUEUELOCK around {eventQueue, eventQueueLength}
 	// (or the need to use a ConcurrentLinkedQueue as opposed to just a normal
 	// List).  Dunno.  To be safe, I am using them.
-	private StringBuffer logBuffer = new StringBuffer();
-	private volatile int eventQueueLength = 0;
-	private volatile int flushedPos = 0;
+	private final TreeMap<Long, Window> windows = new TreeMap<Long, Window>();
+	private Window currentWindow;
+	private int objectSequence = 0;
+	private final Set<Batch> pendingBatches = new LinkedHashSet<Batch>();
+	private int shippedBatches = 0;
+	private int failedBatches = 0;
+	private int spillSequence = 0;
+	private volatile boolean draining = false;
+	private volatile File spillDir;
 
 	private final ICachePublisher cachePublisher;
 	private final ScheduledExecutorService executorService;
 
-	private volatile PublishContext reuseContext;
-
 	/**
 	 * Creates an instance with the provided cache publishing collaborator.
 	 * The instance will create a buffer of the capacity specified and will
@@ -91,11 +268,34 @@ public class LoggingEventCache {
 	 */
 	public LoggingEventCache(String cacheName, int capacity,
 			int autoFlushInterval, ICachePublisher cachePublisher) {
+		this(cacheName, capacity, autoFlushInterval, RolloverWindow.NONE, 0, null, cachePublisher);
+	}
+
+	/**
+	 * Creates an instance that cuts published objects on wall-clock windows.
+	 *
+	 * @param cacheName name for the cache
+	 * @param capacity the capacity of the buffer for events of a window before
+	 * the buffer is published
+	 * @param autoFlushInterval
+	 * @param rollover the windows to cut objects on
+	 * @param rolloverGrace seconds to wait for late events after a window ends
+	 * @param chunkPool pool of off-heap chunks to stage events in as UTF-8,
+	 * or null to stage them on the heap
+	 * @param cachePublisher the publishing collaborator
+	 */
+	public LoggingEventCache(String cacheName, int capacity, int autoFlushInterval,
+			RolloverWindow rollover, int rolloverGrace, ChunkPool chunkPool,
+			ICachePublisher cachePublisher) {
 		this.cacheName = cacheName;
+		this.chunkPool = chunkPool;
 		this.capacity = capacity;
+		this.rollover = rollover;
+		this.rolloverGraceMillis = TimeUnit.SECONDS.toMillis(rolloverGrace);
 		this.cachePublisher = cachePublisher;
 		executorService = createExecutorService();
 		scheduleAutoFlusher(autoFlushInterval);
+		scheduleRollover();
 	}
 
 	private void scheduleAutoFlusher(int autoFlushInterval) {
@@ -108,14 +308,179 @@ public class LoggingEventCache {
 			}, autoFlushInterval, autoFlushInterval, TimeUnit.SECONDS);
 	}
 
+	/**
+	 * Runs a task periodically on the thread that auto-flushes and rolls
+	 * over windows, until the cache is closed.
+	 *
+	 * @param task the task
+	 * @param period time between runs
+	 * @param unit unit of the period
+	 */
+	public void schedule(Runnable task, long period, TimeUnit unit) {
+		executorService.scheduleAtFixedRate(task, period, period, unit);
+	}
+
+	private void scheduleRollover() {
+		if(rollover != RolloverWindow.NONE)
+			executorService.scheduleAtFixedRate(new Runnable() {
+				@Override
+				public void run() {
+					publishEndedWindows(System.currentTimeMillis());
+				}
+			}, 1, 1, TimeUnit.SECONDS);
+	}
+
 	public void close() {
-		flushAndPublishQueue(true, false);
+		close(10, TimeUnit.MINUTES, null);
+	}
+
+	/**
+	 * Spill batches that fail to the directory, instead of dropping them.
+	 * The publisher spills the copies of single destinations there as well
+	 * (see {@link ICachePublisher#setSpillDir(File)}), so a batch only fails
+	 * here if no destination got it.
+	 *
+	 * @param spillDir the spill directory, or null to drop failed batches
+	 */
+	public void setSpillDir(File spillDir) {
+		this.spillDir = spillDir;
+		cachePublisher.setSpillDir(spillDir);
+	}
+
+	/**
+	 * Publishes everything buffered and waits, up to the timeout, for all
+	 * batches to be stored.  Batches not stored by then are written to the
+	 * spill directory, one file per batch.
+	 *
+	 * @param timeout maximum time to drain
+	 * @param unit unit of the timeout
+	 * @param spillDir directory for unsent batches, or null to drop them
+	 * @return what was shipped and what was spilled
+	 */
+	public DrainReport close(long timeout, TimeUnit unit, File spillDir) {
+		long deadline = System.nanoTime() + unit.toNanos(timeout);
+		DrainReport report = new DrainReport(cacheName);
+		int shippedBefore, failedBefore;
+		List<Batch> waitFor;
+		synchronized(lock) {
+			shippedBefore = shippedBatches;
+			failedBefore = failedBatches;
+			draining = true;
+		}
+		flushAndPublishQueue(false, false);
 		executorService.shutdown();//to cancel the auto-flusher
+		synchronized(lock) {
+			waitFor = new ArrayList<Batch>(pendingBatches);
+		}
+		CompletableFuture<?>[] done = new CompletableFuture<?>[waitFor.size()];
+		for (int i = 0; i < done.length; i++)
+			done[i] = waitFor.get(i).done;
 		try {
-			executorService.awaitTermination(10, TimeUnit.MINUTES);
-		} catch (InterruptedException e) {
+			CompletableFuture.allOf(done).handle((v, t) -> null)
+				.get(Math.max(0, deadline - System.nanoTime()), TimeUnit.NANOSECONDS);
+		} catch (TimeoutException e) {
+			report.timedOut = true;
+		} catch (InterruptedException | ExecutionException e) {
+			report.timedOut = true;
 			e.printStackTrace();
 		}
+		if (report.timedOut)
+			executorService.shutdownNow();//interrupt a stuck publish
+		// Spills the copies destinations did not store, which completes their
+		// batches; only batches no destination got are left to spill here
+		cachePublisher.close(Math.max(0, deadline - System.nanoTime()), TimeUnit.NANOSECONDS);
+		List<Batch> unsent;
+		synchronized(lock) {
+			unsent = new ArrayList<Batch>(pendingBatches);
+			report.shippedBatches = shippedBatches - shippedBefore;
+			report.failedBatches = failedBatches - failedBefore;
+			// Batches that failed kept their reference to the chunks for us
+			// (see finish); batches still in flight release theirs whenever
+			// they complete, so take one while spilling them
+			for (Batch b : unsent) {
+				if (!b.failedWhileDraining && null != b.source) b.source.retain();
+				b.spilling = true;
+			}
+		}
+		for (Batch b : unsent) {
+			if (!b.superseded) {
+				File f = null == spillDir ? null : spill(b, spillDir);
+				complete(b.waiters, null != f);
+				if (null == f) {
+					report.lostBatches++;
+				} else {
+					report.spilledBatches++;
+					report.spilledBytes += f.length();
+					report.spillFiles.add(f);
+				}
+			}
+			if (null != b.source) b.source.release();
+		}
+		return report;
+	}
+
+	/**
+	 * Writes a batch to the spill directory.  The file is named after the
+	 * window start, the cache name (unique per cache instance, so processes
+	 * sharing the directory do not collide) and a sequence number, and only
+	 * appears under that name once complete.
+	 */
+	private File spill(Batch b, File spillDir) {
+		int n;
+		synchronized(lock) {
+			n = spillSequence++;
+		}
+		long stamp = b.window.start == Long.MIN_VALUE ? 0 : b.window.start;
+		File f = new File(spillDir, String.format("%d_%s_%d%s", stamp, cacheName, n, SPILL_SUFFIX));
+		try {
+			SpillFiles.write(f, b.chunks, b.logs);
+			return f;
+		} catch (IOException e) {
+			e.printStackTrace();
+			return null;
+		}
+	}
+
+	/**
+	 * Feeds batches spilled by an earlier {@link #close(long, TimeUnit, File)}
+	 * back into this cache.  Each file is first claimed by renaming it, so
+	 * that caches of several processes sharing the directory replay it only
+	 * once; files still being written are ignored.  A file is added as is,
+	 * like a batch of events already encoded (one per line), to the window
+	 * it was spilled from, and deleted once a batch holding it is stored or
+	 * spilled again; if it is dropped, the file is given back.  The
+	 * copies the publisher spilled for single destinations are replayed
+	 * to those destinations.
+	 *
+	 * @param spillDir the spill directory
+	 * @return the number of spilled batches fed back
+	 */
+	public int replaySpill(File spillDir) {
+		File[] files = spillDir.listFiles();
+		if (null == files) return 0;
+		Arrays.sort(files);
+		int replayed = 0;
+		for (File f : files) {
+			String name = f.getName();
+			if (!name.endsWith(SPILL_SUFFIX)) continue;
+			final File claimed = SpillFiles.claim(f, cacheName);
+			if (null == claimed) continue;//replayed by someone else
+			try {
+				long stamp = Long.parseLong(name.substring(0, name.indexOf('_')));
+				byte[] logs = Files.readAllBytes(claimed.toPath());
+				int events = 0;
+				for (byte b : logs)
+					if (b == '\n') events++;
+				addTracked(logs, 0, logs.length, Math.max(1, events),
+					stamp > 0 ? stamp : System.currentTimeMillis())
+					.whenComplete((v, t) -> SpillFiles.release(claimed, f, null == t));
+				replayed++;
+			} catch (IOException | RuntimeException e) {
+				System.out.println("Cannot replay spill file " + f + ": " + e);
+				SpillFiles.release(claimed, f, false);
+			}
+		}
+		return replayed + cachePublisher.replaySpill(spillDir);
 	}
 
 	ScheduledExecutorService createExecutorService() {
@@ -138,12 +503,104 @@ public class LoggingEventCache {
 	 * @param log the log to add to the cache.
 	 */
 	public void add(String log) {
+		add(log, System.currentTimeMillis());
+	}
+
+	/**
+	 * Adds a log event to the cache, in the rollover window of its time
+	 * stamp.  If the number of events of the window reach the capacity of
+	 * the batch, they will be published.
+	 *
+	 * @param log the log to add to the cache.
+	 * @param timeStamp the time of the event
+	 */
+	public void add(String log, long timeStamp) {
+		Window w;
 		synchronized(lock) {
-			logBuffer.append(log);
-			eventQueueLength++;
-			if (eventQueueLength < capacity) return;
+			w = windowFor(timeStamp);
+			w.append(log);
+			w.eventQueueLength++;
+			if (w.eventQueueLength < capacity) return;
 		}
-		flushAndPublishQueue(false, false);
+		flushAndPublishWindow(w, false);
+	}
+
+	/**
+	 * Adds a log event already encoded as UTF-8, like {@link #add(String, long)}.
+	 * With off-heap staging the bytes are copied as is, without decoding.
+	 *
+	 * @param bytes source of the encoded event
+	 * @param off offset of the first byte
+	 * @param len number of bytes
+	 * @param timeStamp the time of the event
+	 */
+	public void add(byte[] bytes, int off, int len, long timeStamp) {
+		add(bytes, off, len, 1, timeStamp);
+	}
+
+	/**
+	 * Adds several log events already encoded as UTF-8 at once, like
+	 * {@link #add(byte[], int, int, long)}.
+	 *
+	 * @param bytes source of the encoded events
+	 * @param off offset of the first byte
+	 * @param len number of bytes
+	 * @param events number of events the bytes hold, counted against the
+	 * 	capacity
+	 * @param timeStamp the time of the events
+	 */
+	public void add(byte[] bytes, int off, int len, int events, long timeStamp) {
+		Window w;
+		synchronized(lock) {
+			w = windowFor(timeStamp);
+			w.append(bytes, off, len);
+			w.eventQueueLength += events;
+			if (w.eventQueueLength < capacity) return;
+		}
+		flushAndPublishWindow(w, false);
+	}
+
+	/**
+	 * Adds log events already encoded as UTF-8 like
+	 * {@link #add(byte[], int, int, int, long)}, and tracks them until they
+	 * are stored.
+	 *
+	 * @param bytes source of the encoded events
+	 * @param off offset of the first byte
+	 * @param len number of bytes
+	 * @param events number of events the bytes hold, counted against the
+	 * 	capacity
+	 * @param timeStamp the time of the events
+	 * @return a future completed once a batch holding the events is stored
+	 * 	or spilled, or completed exceptionally if they are dropped
+	 */
+	public CompletableFuture<Void> addTracked(byte[] bytes, int off, int len, int events, long timeStamp) {
+		CompletableFuture<Void> stored = new CompletableFuture<Void>();
+		Window w;
+		synchronized(lock) {
+			w = windowFor(timeStamp);
+			w.append(bytes, off, len);
+			w.eventQueueLength += events;
+			w.waiters.add(stored);
+			if (w.eventQueueLength < capacity) return stored;
+		}
+		flushAndPublishWindow(w, false);
+		return stored;
+	}
+
+	private Window windowFor(long timeStamp) {
+		Window w = currentWindow;
+		if (w != null && timeStamp >= w.start && timeStamp < w.end)
+			return w;
+		long start = rollover.start(timeStamp);
+		w = windows.get(start);
+		if (w == null) {
+			w = new Window(start, rollover.end(start), chunkPool);
+			windows.put(start, w);
+		}
+		if (currentWindow == null || w.start > currentWindow.start)
+			currentWindow = w;
+		return w;
 	}
 
 	/**
@@ -152,39 +609,181 @@ public class LoggingEventCache {
 	 *
 	 */
 	public void flushAndPublishQueue(boolean block, boolean keepOpen) {
-		String logsToPublish;
+		List<Window> toFlush;
 		synchronized(lock) {
-			if (eventQueueLength <= flushedPos) return;
-			logsToPublish = logBuffer.toString();
-			if(!keepOpen) {
-				logBuffer = new StringBuffer();
-				eventQueueLength = 0;
-			}
-			flushedPos = eventQueueLength;
+			toFlush = new ArrayList<Window>(windows.values());
+		}
+		List<Future<Void>> futures = new ArrayList<Future<Void>>(toFlush.size());
+		for (Window w : toFlush) {
+			Future<Void> f = flushAndPublishWindow(w, keepOpen);
+			if (f != null) futures.add(f);
 		}
-		Future<Boolean> f = publishCache(logsToPublish, keepOpen);
 		if (block) {
-			try {
-				f.get();
-			} catch (InterruptedException | ExecutionException e) {
-				e.printStackTrace();
+			for (Future<Void> f : futures) {
+				try {
+					f.get();
+				} catch (InterruptedException | ExecutionException e) {
+					e.printStackTrace();
+				}
 			}
 		}
 	}
 
-	Future<Boolean> publishCache(final String logsToPublish, boolean keepOpen) {
-		Future<Boolean> f = executorService.submit(new Callable<Boolean>() {
-			public Boolean call() {
+	/**
+	 * Conclude and publish the windows that ended (including the grace
+	 * period) before the given time.
+	 *
+	 * @param now the current time
+	 */
+	void publishEndedWindows(long now) {
+		List<Window> ended = new ArrayList<Window>();
+		synchronized(lock) {
+			Iterator<Window> it = windows.values().iterator();
+			while (it.hasNext()) {
+				Window w = it.next();
+				if (w.end > now - rolloverGraceMillis) break;
+				it.remove();
+				if (w == currentWindow) currentWindow = null;
+				ended.add(w);
+			}
+		}
+		for (Window w : ended)
+			flushAndPublishWindow(w, false);
+	}
+
+	private Future<Void> flushAndPublishWindow(Window w, boolean keepOpen) {
+		String logsToPublish = null;
+		ChunkedBuffer toRelease = null;
+		Batch batch = null;
+		synchronized(lock) {
+			if (w.eventQueueLength <= w.flushedPos) {
+				// Already published by an auto-flush; on conclusion the chunks
+				// go back to the pool once that batch let go of them too
+				if (keepOpen || null == w.stagingBuffer || w.stagingBuffer.length() == 0)
+					return null;
+				toRelease = w.stagingBuffer;
+				w.resetBuffer(chunkPool);
+				w.eventQueueLength = w.flushedPos = 0;
+			} else {
+				if (null == w.stagingBuffer)
+					logsToPublish = w.logBuffer.toString();
+				batch = new Batch(w, logsToPublish, w.stagingBuffer, keepOpen);
+				batch.waiters.addAll(w.waiters);
+				w.waiters.clear();
+				for (Batch b : pendingBatches)
+					if (b.window == w && b.keepOpen) {
+						b.superseded = true;
+						batch.waiters.addAll(b.waiters);
+					}
+				pendingBatches.add(batch);
+			}
+			if(!keepOpen && null == toRelease) {
+				toRelease = w.stagingBuffer;
+				w.resetBuffer(chunkPool);
+				w.eventQueueLength = 0;
+			}
+			w.flushedPos = w.eventQueueLength;
+		}
+		return publishCache(w, batch, toRelease);
+	}
+
+	Future<Void> publishCache(final Window w, final Batch batch, final ChunkedBuffer toRelease) {
+		executorService.execute(new Runnable() {
+			public void run() {
 				Thread.currentThread().setName(PUBLISH_THREAD_NAME);
-				PublishContext ctx = reuseContext;//republish if last is open
-				if(ctx==null) ctx = cachePublisher.createContext(cacheName);
-				cachePublisher.startPublish(ctx);
-				cachePublisher.publish(ctx, logsToPublish);
-				cachePublisher.endPublish(ctx);
-				reuseContext = keepOpen ? ctx : null;//keep context open for next republish
-				return true;
+				if (null == batch) {
+					finish(null, toRelease, null);
+					return;
+				}
+				try {
+					PublishContext ctx = w.reuseContext;//republish if last is open
+					if(ctx==null) ctx = createContext(w);
+					cachePublisher.startPublish(ctx);
+					if (null == batch.chunks)
+						cachePublisher.publish(ctx, batch.logs);
+					else
+						cachePublisher.publish(ctx, batch.chunks);
+					CompletableFuture<Void> stored = cachePublisher.endPublishAsync(ctx);
+					w.reuseContext = batch.keepOpen ? ctx : null;//keep context open for next republish
+					stored.whenComplete((v, t) -> finish(batch, toRelease, t));
+				} catch (RuntimeException e) {
+					e.printStackTrace();
+					finish(batch, toRelease, e);
+				}
 			}
 		});
-		return f;
+		return null == batch ? null : batch.done;
+	}
+
+	private void finish(Batch batch, ChunkedBuffer toRelease, Throwable failure) {
+		File spillTo = null;
+		boolean stored = false, dropped = false;
+		// Waiters learn of the stored batch before close() can stop waiting
+		// for it
+		if (null != batch && null == failure)
+			complete(batch.waiters, true);
+		synchronized(lock) {
+			if (null != batch) {
+				if (null == failure) {
+					if (pendingBatches.remove(batch)) shippedBatches++;
+				} else {
+					failedBatches++;
+					// Batches failing while draining stay pending so they get
+					// spilled, and hold on to their chunks until then
+					if (draining) {
+						if (!batch.spilling) batch.failedWhileDraining = true;
+					} else {
+						pendingBatches.remove(batch);
+						if (batch.superseded) {
+							// republished by a later batch
+						} else if (batch.keepOpen && isStaging(batch.window, batch.buffer)) {
+							batch.window.flushedPos = 0;//republish with the next flush
+							batch.window.waiters.addAll(batch.waiters);
+						} else if (null != spillDir) {
+							spillTo = spillDir;
+						} else {
+							dropped = true;
+						}
+					}
+				}
+			}
+		}
+		if (null != spillTo) {
+			File f = spill(batch, spillTo);
+			if (null != f)
+				System.out.println("Spilled failed batch to " + f);
+			stored = null != f;
+			dropped = null == f;
+		}
+		if (stored || dropped)
+			complete(batch.waiters, stored);
+		// Destinations may still have been reading the chunks until now; they
+		// go back to the pool once the window concluded and no batch of it is
+		// in flight
+		if (null != batch && null != batch.source && !batch.failedWhileDraining)
+			batch.source.release();
+		if (null != toRelease) toRelease.release();
+		if (null != batch) {
+			if (null == failure) batch.done.complete(null);
+			else batch.done.completeExceptionally(failure);
+		}
+	}
+
+	private static void complete(List<CompletableFuture<Void>> waiters, boolean stored) {
+		for (CompletableFuture<Void> f : waiters) {
+			if (stored) f.complete(null);
+			else f.completeExceptionally(new IOException("Batch dropped"));
+		}
+	}
+
+	private static boolean isStaging(Window w, Object buffer) {
+		return buffer == w.stagingBuffer || buffer == w.logBuffer;
+	}
+
+	private PublishContext createContext(Window w) {
+		if (rollover == RolloverWindow.NONE)
+			return cachePublisher.createContext(cacheName);
+		// Several objects may be published for the same window, so number them
+		return cachePublisher.createContext(cacheName + "-" + (objectSequence++), w.start);
 	}
 }
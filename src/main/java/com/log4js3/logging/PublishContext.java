@@ -9,10 +9,15 @@ package com.log4js3.logging;
  *
  */
 public class PublishContext {
+	public static final String ENCODING_TEXT = "text";
+	public static final String ENCODING_TEMPLATE = "template";
+
 	public final String cacheName;
 	public final String hostName;
 	public final String[] tags;
 	public final boolean gzip;
+	public final String encoding;
+	public final long timeStamp;
 
 	/**
 	 * Creates an instance with the data provided
@@ -26,10 +31,57 @@ public class PublishContext {
 	 * @param gzip
 	 */
 	public PublishContext(String cacheName, String hostName, String[] tags, boolean gzip) {
+		this(cacheName, hostName, tags, gzip, ENCODING_TEXT);
+	}
+
+	/**
+	 * Creates an instance with the data provided
+	 *
+	 * @param cacheName name of the cache used to distinguish it from other
+	 * 	caches
+	 * @param hostName the host name where the logs are collected (typically
+	 * 	the name of the local host)
+	 * @param tags additional tags for the event that the logger was intialized
+	 * 	with
+	 * @param gzip
+	 * @param encoding how the batch is encoded before compression, either
+	 * 	{@link #ENCODING_TEXT} or {@link #ENCODING_TEMPLATE}
+	 */
+	public PublishContext(String cacheName, String hostName, String[] tags, boolean gzip,
+			String encoding) {
+		this(cacheName, hostName, tags, gzip, encoding, System.currentTimeMillis());
+	}
+
+	/**
+	 * Creates an instance with the data provided
+	 *
+	 * @param cacheName name of the cache used to distinguish it from other
+	 * 	caches
+	 * @param hostName the host name where the logs are collected (typically
+	 * 	the name of the local host)
+	 * @param tags additional tags for the event that the logger was intialized
+	 * 	with
+	 * @param gzip
+	 * @param encoding how the batch is encoded before compression, either
+	 * 	{@link #ENCODING_TEXT} or {@link #ENCODING_TEMPLATE}
+	 * @param timeStamp time the batch is stamped with (the start of its
+	 * 	rollover window, or the flush time)
+	 */
+	public PublishContext(String cacheName, String hostName, String[] tags, boolean gzip,
+			String encoding, long timeStamp) {
 		this.cacheName = cacheName;
 		this.hostName = hostName;
 		this.tags = tags;
 		this.gzip = gzip;
+		this.encoding = encoding;
+		this.timeStamp = timeStamp;
+	}
+
+	/**
+	 * @return true if the batch is stored in the compact template encoding
+	 */
+	public boolean isTemplateEncoded() {
+		return ENCODING_TEMPLATE.equals(encoding);
 	}
 
 }
\ No newline at end of file
@@ -0,0 +1,56 @@
+package com.log4js3.logging;
+
+import java.util.Calendar;
+
+/**
+ * Wall-clock aligned windows that published objects are cut on.  Windows
+ * are aligned in the default time zone, the same one used to format the
+ * object keys, so that an object never spans a key's date prefix.
+ *
+ */
+public enum RolloverWindow {
+	/** Objects are cut by size/flushes only and stamped with flush time. */
+	NONE(-1),
+	MINUTE(Calendar.MINUTE),
+	HOUR(Calendar.HOUR_OF_DAY),
+	DAY(Calendar.DAY_OF_MONTH);
+
+	private final int field;
+
+	RolloverWindow(int field) {
+		this.field = field;
+	}
+
+	/**
+	 * Retrieves the start of the window containing the given time.
+	 *
+	 * @param timeStamp time in milliseconds since the epoch
+	 * @return the start of the window, or {@link Long#MIN_VALUE} for
+	 * 	{@link #NONE}
+	 */
+	public long start(long timeStamp) {
+		if (this == NONE) return Long.MIN_VALUE;
+		Calendar c = Calendar.getInstance();
+		c.setTimeInMillis(timeStamp);
+		c.set(Calendar.MILLISECOND, 0);
+		c.set(Calendar.SECOND, 0);
+		if (field != Calendar.MINUTE) c.set(Calendar.MINUTE, 0);
+		if (field == Calendar.DAY_OF_MONTH) c.set(Calendar.HOUR_OF_DAY, 0);
+		return c.getTimeInMillis();
+	}
+
+	/**
+	 * Retrieves the (exclusive) end of the window starting at the given time.
+	 *
+	 * @param start a value returned by {@link #start(long)}
+	 * @return the end of the window, or {@link Long#MAX_VALUE} for
+	 * 	{@link #NONE}
+	 */
+	public long end(long start) {
+		if (this == NONE) return Long.MAX_VALUE;
+		Calendar c = Calendar.getInstance();
+		c.setTimeInMillis(start);
+		c.add(field, 1);
+		return c.getTimeInMillis();
+	}
+}
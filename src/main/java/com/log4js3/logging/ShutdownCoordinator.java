@@ -0,0 +1,103 @@
+package com.log4js3.logging;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Drains all registered caches in parallel from a single JVM shutdown hook,
+ * so that the whole process finishes within one deadline instead of each
+ * appender draining after the other.  The deadline is the smallest one any
+ * participant registered with.
+ *
+ */
+public class ShutdownCoordinator {
+	public static final String DRAIN_THREAD_NAME = "ShutdownCoordinator-drain-thread";
+	static final long SPILL_RESERVE_NANOS = TimeUnit.SECONDS.toNanos(2);
+
+	/**
+	 * A participant in the coordinated shutdown.
+	 */
+	public interface IDrainable {
+		/**
+		 * Publish everything buffered, giving up at the deadline.
+		 *
+		 * @param timeout time left until the deadline
+		 * @param unit unit of the timeout
+		 */
+		void drain(long timeout, TimeUnit unit);
+	}
+
+	private static final ShutdownCoordinator INSTANCE = new ShutdownCoordinator();
+
+	private final Map<IDrainable, Long> participants = new LinkedHashMap<IDrainable, Long>();
+	private boolean hookInstalled = false;
+
+	public static ShutdownCoordinator getInstance() {
+		return INSTANCE;
+	}
+
+	/**
+	 * Registers a participant.  The shutdown hook is installed on the first
+	 * registration.
+	 *
+	 * @param drainable the participant
+	 * @param deadline total time the participant may take to drain
+	 * @param unit unit of the deadline
+	 */
+	public synchronized void register(IDrainable drainable, long deadline, TimeUnit unit) {
+		participants.put(drainable, unit.toNanos(deadline));
+		if (!hookInstalled) {
+			Runtime.getRuntime().addShutdownHook(new Thread() {
+				public void run() {
+					drainAll();
+				}
+			});
+			hookInstalled = true;
+		}
+	}
+
+	/**
+	 * Removes a participant, e.g. after it was closed by other means.
+	 *
+	 * @param drainable the participant
+	 */
+	public synchronized void unregister(IDrainable drainable) {
+		participants.remove(drainable);
+	}
+
+	void drainAll() {
+		List<IDrainable> drainables;
+		long timeout = Long.MAX_VALUE;
+		synchronized (this) {
+			drainables = new ArrayList<IDrainable>(participants.keySet());
+			for (long t : participants.values())
+				timeout = Math.min(timeout, t);
+		}
+		final long deadline = System.nanoTime() + timeout;
+		// Participants stop waiting a little early to leave time for spilling
+		final long drainDeadline = deadline - Math.min(timeout / 10, SPILL_RESERVE_NANOS);
+		List<Thread> threads = new ArrayList<Thread>(drainables.size());
+		for (final IDrainable d : drainables) {
+			Thread t = new Thread(new Runnable() {
+				public void run() {
+					d.drain(Math.max(0, drainDeadline - System.nanoTime()), TimeUnit.NANOSECONDS);
+				}
+			}, DRAIN_THREAD_NAME);
+			t.setDaemon(true);
+			t.start();
+			threads.add(t);
+		}
+		try {
+			for (Thread t : threads) {
+				long left = TimeUnit.NANOSECONDS.toMillis(deadline - System.nanoTime());
+				if (left <= 0) break;
+				t.join(left);
+			}
+		} catch (InterruptedException e) {
+			e.printStackTrace();
+		}
+	}
+}
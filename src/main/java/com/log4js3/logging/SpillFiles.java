@@ -0,0 +1,112 @@
+package com.log4js3.logging;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+
+/**
+ * Writes and claims the files of a spill directory.  A file only appears
+ * under its name once complete, and is claimed by renaming it before it is
+ * replayed, so that processes sharing the directory replay it only once.
+ *
+ */
+public class SpillFiles {
+	public static final String SPILL_SUFFIX = ".spill";
+	static final String TMP_SUFFIX = ".tmp";
+	static final String CLAIMED_SUFFIX = ".replaying-";
+
+	private interface Content {
+		void writeTo(OutputStream out) throws IOException;
+	}
+
+	private SpillFiles() {
+	}
+
+	/**
+	 * Writes logs to a spill file, replacing any file of that name.
+	 *
+	 * @param f the spill file
+	 * @param chunks the logs staged off-heap, written first, or null
+	 * @param text the logs as text, or null
+	 * @throws IOException if the file cannot be written
+	 */
+	public static void write(File f, final ByteChunks chunks, final String text) throws IOException {
+		write(f, new Content() {
+			public void writeTo(OutputStream out) throws IOException {
+				if (null != chunks)
+					chunks.writeTo(out);
+				if (null != text)
+					out.write(text.getBytes(StandardCharsets.UTF_8));
+			}
+		});
+	}
+
+	/**
+	 * Writes logs already encoded as UTF-8 to a spill file, replacing any
+	 * file of that name.
+	 *
+	 * @param f the spill file
+	 * @param bytes source of the logs
+	 * @param off offset of the first byte
+	 * @param len number of bytes
+	 * @throws IOException if the file cannot be written
+	 */
+	public static void write(File f, final byte[] bytes, final int off, final int len) throws IOException {
+		write(f, new Content() {
+			public void writeTo(OutputStream out) throws IOException {
+				out.write(bytes, off, len);
+			}
+		});
+	}
+
+	private static void write(File f, Content content) throws IOException {
+		File tmp = new File(f.getParentFile(), f.getName() + TMP_SUFFIX);
+		f.getParentFile().mkdirs();
+		try (FileOutputStream out = new FileOutputStream(tmp)) {
+			content.writeTo(out);
+			out.getFD().sync();
+		} catch (IOException e) {
+			tmp.delete();
+			throw e;
+		}
+		Files.move(tmp.toPath(), f.toPath(), StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+	}
+
+	/**
+	 * Claims a spill file for replay.
+	 *
+	 * @param f the spill file
+	 * @param owner unique name of the claiming cache or publisher
+	 * @return the claimed file, or null if it was claimed by someone else
+	 */
+	public static File claim(File f, String owner) {
+		File claimed = new File(f.getParentFile(), f.getName() + CLAIMED_SUFFIX + owner);
+		try {
+			Files.move(f.toPath(), claimed.toPath(), StandardCopyOption.ATOMIC_MOVE);
+			return claimed;
+		} catch (IOException e) {
+			return null;
+		}
+	}
+
+	/**
+	 * Concludes the replay of a claimed file: deletes it once replayed, or
+	 * gives it back under its name to be replayed again.
+	 *
+	 * @param claimed the claimed file
+	 * @param f the name it was claimed from
+	 * @param replayed true if the logs were stored or spilled again
+	 */
+	public static void release(File claimed, File f, boolean replayed) {
+		if (replayed) {
+			if (!claimed.delete())
+				System.out.println("Cannot delete replayed spill file " + claimed);
+		} else if (!claimed.renameTo(f)) {
+			System.out.println("Cannot give back spill file " + claimed);
+		}
+	}
+}
@@ -0,0 +1,130 @@
+package com.log4js3.logging;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.function.Predicate;
+
+/**
+ * A bounded, lock-striped LRU cache keyed by strings.  The key space is split
+ * over a fixed number of stripes, each an access-ordered map guarded by its
+ * own monitor, so that unrelated keys do not contend on a single lock.
+ * <br>
+ * Callers must hold the monitor of the {@link Stripe} returned by
+ * {@link #stripe(String)} while reading or updating it.  Entries pushed out
+ * by the size bound are kept on the stripe until {@link Stripe#drainEvicted()}
+ * is called, so that callers can still account for them.
+ *
+ * @param <V> the type of the cached values
+ */
+public class StripedLruCache<V> {
+
+	/**
+	 * A single stripe of the cache.  Synchronize on the stripe itself.
+	 */
+	public static class Stripe<V> extends LinkedHashMap<String, V> {
+		private static final long serialVersionUID = 1L;
+
+		private final int maxEntries;
+		private List<V> evicted;
+
+		Stripe(int maxEntries) {
+			super(16, 0.75f, true);
+			this.maxEntries = maxEntries;
+		}
+
+		@Override
+		protected boolean removeEldestEntry(Map.Entry<String, V> eldest) {
+			if (size() <= maxEntries) return false;
+			if (evicted == null) evicted = new ArrayList<V>(1);
+			evicted.add(eldest.getValue());
+			return true;
+		}
+
+		/**
+		 * Returns and forgets the values evicted since the last call.
+		 *
+		 * @return evicted values, or null if there are none
+		 */
+		public List<V> drainEvicted() {
+			List<V> res = evicted;
+			evicted = null;
+			return res;
+		}
+	}
+
+	private final Stripe<V>[] stripes;
+
+	/**
+	 * Creates a cache holding at most (roughly) maxEntries values.
+	 *
+	 * @param stripeCount number of independently locked stripes
+	 * @param maxEntries upper bound on the total number of values kept
+	 */
+	@SuppressWarnings("unchecked")
+	public StripedLruCache(int stripeCount, int maxEntries) {
+		if (stripeCount <= 0 || maxEntries <= 0)
+			throw new IllegalArgumentException("stripeCount and maxEntries must be positive");
+		stripes = new Stripe[stripeCount];
+		int perStripe = Math.max(1, maxEntries / stripeCount);
+		for (int i = 0; i < stripeCount; i++)
+			stripes[i] = new Stripe<V>(perStripe);
+	}
+
+	/**
+	 * Retrieves the stripe responsible for the given key.
+	 *
+	 * @param key the cache key
+	 * @return the stripe; synchronize on it before use
+	 */
+	public Stripe<V> stripe(String key) {
+		int h = key.hashCode();
+		h ^= (h >>> 16);
+		return stripes[(h & 0x7fffffff) % stripes.length];
+	}
+
+	/**
+	 * Removes the values matching the predicate, which is evaluated while
+	 * holding the monitor of each value's stripe.
+	 *
+	 * @param filter selects the values to remove
+	 * @return the values removed
+	 */
+	public List<V> removeIf(Predicate<? super V> filter) {
+		List<V> res = new ArrayList<V>();
+		for (Stripe<V> s : stripes) {
+			synchronized (s) {
+				Iterator<V> it = s.values().iterator();
+				while (it.hasNext()) {
+					V v = it.next();
+					if (filter.test(v)) {
+						res.add(v);
+						it.remove();
+					}
+				}
+			}
+		}
+		return res;
+	}
+
+	/**
+	 * Removes all values from the cache, returning them (including any not
+	 * yet drained evictions).
+	 *
+	 * @return all values that were held by the cache
+	 */
+	public List<V> clear() {
+		List<V> res = new ArrayList<V>();
+		for (Stripe<V> s : stripes) {
+			synchronized (s) {
+				List<V> ev = s.drainEvicted();
+				if (ev != null) res.addAll(ev);
+				res.addAll(s.values());
+				s.clear();
+			}
+		}
+		return res;
+	}
+}
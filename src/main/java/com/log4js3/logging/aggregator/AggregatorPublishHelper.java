@@ -0,0 +1,149 @@
+package com.log4js3.logging.aggregator;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+
+import com.log4js3.logging.ByteChunks;
+import com.log4js3.logging.PublishContext;
+import com.log4js3.logging.log4j.BatchCollector;
+import com.log4js3.logging.log4j.IPublishHelper;
+
+/**
+ * Implementation to ship batches to a {@link LogAggregator} on the local
+ * host over loopback TCP.  Batches are sent as rendered text; encoding,
+ * compression and upload are left to the aggregator.  While the aggregator
+ * is unavailable, batches go to the fallback helper (typically publishing
+ * directly to S3), and the aggregator is tried again after a while.  A
+ * batch the aggregator received but did not acknowledge in time goes to
+ * the fallback as well, so it may be stored twice.
+ *
+ */
+public class AggregatorPublishHelper implements IPublishHelper {
+	static final int CONNECT_TIMEOUT = 1000;
+	static final int ACK_TIMEOUT = 30000;
+	static final long RETRY_INTERVAL = 10000;
+
+	private final int port;
+	private final String token;
+	private final IPublishHelper fallback;
+
+	private Socket socket;
+	private DataOutputStream out;
+	private InputStream in;
+	private long retryAt;
+
+	private final BatchCollector collector = new BatchCollector();
+
+	/**
+	 * @param port port the aggregator listens on
+	 * @param token token the aggregator requires
+	 * @param fallback helper to publish with while the aggregator is
+	 * 	unavailable, or null to fail such batches
+	 */
+	public AggregatorPublishHelper(int port, String token, IPublishHelper fallback) {
+		this.port = port;
+		this.token = token;
+		this.fallback = fallback;
+	}
+
+	public void start(PublishContext context) {
+		collector.reset();
+	}
+
+	public void publish(PublishContext context, String log) {
+		collector.append(log);
+	}
+
+	public void publish(PublishContext context, ByteChunks logs) {
+		collector.append(logs);
+	}
+
+	public void end(PublishContext context) {
+		endAsync(context);
+	}
+
+	public CompletableFuture<Void> endAsync(PublishContext context) {
+		BatchCollector.Collected batch = collector.take();
+		if (System.currentTimeMillis() >= retryAt) {
+			try {
+				send(context, batch.chunks, batch.text);
+				return CompletableFuture.completedFuture(null);
+			} catch (IOException e) {
+				disconnect();
+				retryAt = System.currentTimeMillis() + RETRY_INTERVAL;
+				System.out.println(String.format("Aggregator on port %d unavailable (%s), publishing %s directly",
+					port, e, context.cacheName));
+			}
+		}
+		if (null == fallback) {
+			CompletableFuture<Void> f = new CompletableFuture<Void>();
+			f.completeExceptionally(new IOException("Aggregator unavailable"));
+			return f;
+		}
+		return batch.publishTo(fallback, context);
+	}
+
+	void send(PublishContext context, ByteChunks chunks, String data) throws IOException {
+		if (null == socket)
+			connect();
+		byte[] text = data.getBytes(StandardCharsets.UTF_8);
+		long length = (null == chunks ? 0 : chunks.length()) + text.length;
+		if (length > LogAggregator.MAX_BATCH_SIZE)
+			throw new IOException("Batch too large for the aggregator");
+		out.writeInt(LogAggregator.MAGIC);
+		out.writeUTF(context.cacheName);
+		out.writeLong(context.timeStamp);
+		out.writeInt((int) length);
+		if (null != chunks)
+			chunks.writeTo(out);
+		out.write(text);
+		out.flush();
+		if (in.read() != LogAggregator.ACK)
+			throw new IOException("Batch not acknowledged");
+	}
+
+	private void connect() throws IOException {
+		Socket s = new Socket();
+		try {
+			s.connect(new InetSocketAddress(InetAddress.getLoopbackAddress(), port), CONNECT_TIMEOUT);
+			s.setSoTimeout(ACK_TIMEOUT);
+			out = new DataOutputStream(new BufferedOutputStream(s.getOutputStream()));
+			in = s.getInputStream();
+			out.writeInt(LogAggregator.HELLO);
+			out.writeUTF(token);
+			out.flush();
+			if (in.read() != LogAggregator.ACK)
+				throw new IOException("Aggregator token rejected");
+			socket = s;
+		} catch (IOException e) {
+			s.close();
+			throw e;
+		}
+	}
+
+	private void disconnect() {
+		if (null == socket) return;
+		try {
+			socket.close();
+		} catch (IOException e) {
+			// nothing left to do
+		}
+		socket = null;
+		out = null;
+		in = null;
+	}
+
+	public void close(long timeout, TimeUnit unit) {
+		disconnect();
+		if (null != fallback)
+			fallback.close(timeout, unit);
+	}
+}
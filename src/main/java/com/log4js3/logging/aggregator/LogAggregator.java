@@ -0,0 +1,283 @@
+package com.log4js3.logging.aggregator;
+
+import java.io.BufferedInputStream;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.util.Collections;
+import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.zip.CRC32;
+
+import org.apache.log4j.Appender;
+import org.apache.log4j.Logger;
+import org.apache.log4j.PropertyConfigurator;
+
+import com.log4js3.logging.DeamonThreadFactory;
+import com.log4js3.logging.LoggingEventCache;
+import com.log4js3.logging.SpillFiles;
+import com.log4js3.logging.StripedLruCache;
+import com.log4js3.logging.log4j.S3LogAppender;
+
+/**
+ * Host-level batching daemon.  Appenders configured with an aggregatorPort
+ * ship their batches over loopback TCP to this process instead of
+ * publishing them themselves (see {@link AggregatorPublishHelper}).  The
+ * batches of all JVMs on the host are merged into the staging log of a
+ * single S3LogAppender, so that the host produces fewer, larger objects
+ * and compresses them once.
+ * <br>
+ * The aggregator is configured like any appender, in a log4j properties
+ * file:
+ * <pre>
+ * java -cp ... com.log4js3.logging.aggregator.LogAggregator aggregator.properties [appenderName] [port]
+ * </pre>
+ * where appenderName (default "S3Appender") names an S3LogAppender attached
+ * to the root logger.  Its staging, rollover, encoding, destination and
+ * spill options apply to the merged batches.
+ * <br>
+ * Clients must first present the aggregatorToken of that appender, which
+ * is required, as the port is open to every user on the host.
+ * <br>
+ * The appender needs a spillDir: a batch is acknowledged as soon as it is
+ * journaled there, and replayed from there if the aggregator dies before
+ * storing it.  Waiting for the store instead would outlast the timeout of
+ * the clients, which then publish the batch themselves.
+ *
+ */
+public class LogAggregator implements Runnable {
+	public static final int DEFAULT_PORT = 7431;
+	public static final String DEFAULT_APPENDER_NAME = "S3Appender";
+
+	static final int MAGIC = 0x4c345341; // "L4SA"
+	static final int HELLO = 0x4c34534b; // "L4SK"
+	static final int ACK = 1;
+	static final int MAX_BATCH_SIZE = 256 * 1024 * 1024;
+	static final int RECEIVED_STRIPES = 16;
+	static final int RECEIVED_CACHE_SIZE = 4096;
+
+	private final S3LogAppender appender;
+	private final byte[] token;
+	private final ServerSocket server;
+	private final ExecutorService connections =
+		Executors.newCachedThreadPool(new DeamonThreadFactory());
+	// Per batch name: bytes received so far and their checksum
+	private final StripedLruCache<long[]> received =
+		new StripedLruCache<long[]>(RECEIVED_STRIPES, RECEIVED_CACHE_SIZE);
+	private final Set<Socket> sockets =
+		Collections.newSetFromMap(new ConcurrentHashMap<Socket, Boolean>());
+	private final String journalName = "aggregator-" + UUID.randomUUID().toString().replace("-", "");
+	private final AtomicLong journalSequence = new AtomicLong();
+	private volatile boolean closed;
+
+	/**
+	 * Creates an aggregator listening on the loopback interface.
+	 *
+	 * @param port port to listen on
+	 * @param token token clients must present
+	 * @param appender appender to stage the received batches in; it must
+	 * 	have a spillDir to journal them in
+	 * @throws IOException if the port cannot be bound
+	 */
+	public LogAggregator(int port, String token, S3LogAppender appender) throws IOException {
+		if (null == token || token.isEmpty())
+			throw new IllegalArgumentException("An aggregator token is required");
+		if (null == appender.getSpillDirectory())
+			throw new IllegalArgumentException("The aggregator's appender needs a spillDir");
+		this.appender = appender;
+		this.token = token.getBytes(StandardCharsets.UTF_8);
+		this.server = new ServerSocket(port, 50, InetAddress.getLoopbackAddress());
+	}
+
+	/**
+	 * Accepts connections until {@link #close()}.
+	 */
+	public void run() {
+		System.out.println("LogAggregator listening on " + server.getLocalSocketAddress());
+		while (!closed) {
+			try {
+				final Socket socket = server.accept();
+				connections.execute(new Runnable() {
+					public void run() {
+						serve(socket);
+					}
+				});
+			} catch (IOException e) {
+				if (!closed)
+					System.out.println("LogAggregator: accept failed: " + e);
+			}
+		}
+	}
+
+	void serve(Socket socket) {
+		sockets.add(socket);
+		try (Socket s = socket) {
+			if (closed) return;
+			DataInputStream in = new DataInputStream(new BufferedInputStream(s.getInputStream()));
+			OutputStream out = s.getOutputStream();
+			if (in.readInt() != HELLO)
+				throw new IOException("Not an aggregator client");
+			if (!MessageDigest.isEqual(token, in.readUTF().getBytes(StandardCharsets.UTF_8)))
+				throw new IOException("Wrong aggregator token");
+			out.write(ACK);
+			out.flush();
+			for (;;) {
+				int magic;
+				try {
+					magic = in.readInt();
+				} catch (EOFException e) {
+					return;
+				}
+				if (magic != MAGIC)
+					throw new IOException("Not an aggregator client");
+				String name = in.readUTF();
+				long timeStamp = in.readLong();
+				int length = in.readInt();
+				if (length < 0 || length > MAX_BATCH_SIZE)
+					throw new IOException("Bad batch length " + length);
+				byte[] data = new byte[length];
+				in.readFully(data);
+				accept(name, timeStamp, data);
+				out.write(ACK);
+				out.flush();
+			}
+		} catch (IOException | RuntimeException e) {
+			if (!closed)
+				System.out.println("LogAggregator: connection dropped: " + e);
+		} finally {
+			sockets.remove(socket);
+		}
+	}
+
+	/**
+	 * Stages the part of a batch not received before.  Appenders that
+	 * auto-flush republish an open batch under the same name with more
+	 * events appended, so only the bytes past those already received are
+	 * new.  A batch that does not start with the bytes received under its
+	 * name is taken as a new batch.  Returns once the new part is journaled,
+	 * so that the batch may be acknowledged.
+	 *
+	 * @throws IOException if the batch cannot be written to the spill
+	 * 	directory
+	 */
+	void accept(String name, long timeStamp, byte[] data) throws IOException {
+		int from = 0;
+		StripedLruCache.Stripe<long[]> stripe = received.stripe(name);
+		synchronized (stripe) {
+			long[] seen = stripe.get(name);
+			if (null != seen && seen[0] <= data.length && seen[1] == crc(data, 0, (int) seen[0])) {
+				from = (int) seen[0];
+				if (from == data.length) return;
+			}
+		}
+		int events = 0;
+		for (int i = from; i < data.length; i++)
+			if (data[i] == '\n') events++;
+		final File journal = journal(appender.getSpillDirectory(), timeStamp, data, from);
+		CompletableFuture<Void> stored =
+			appender.stage(data, from, data.length - from, Math.max(1, events), timeStamp);
+		synchronized (stripe) {
+			long[] seen = stripe.get(name);
+			if (null == seen) {
+				seen = new long[2];
+				stripe.put(name, seen);
+				stripe.drainEvicted();
+			}
+			seen[0] = data.length;
+			seen[1] = crc(data, 0, data.length);
+		}
+		// Stored or spilled by the appender itself from now on
+		stored.whenComplete((v, t) -> {
+			if (null == t && !journal.delete())
+				System.out.println("LogAggregator: cannot delete " + journal);
+		});
+	}
+
+	/**
+	 * Writes received bytes to the spill directory, in the form the
+	 * appender replays on its next start, and syncs them to disk.
+	 */
+	File journal(File dir, long timeStamp, byte[] data, int from) throws IOException {
+		String name = String.format("%d_%s_%d%s", timeStamp, journalName,
+			journalSequence.getAndIncrement(), LoggingEventCache.SPILL_SUFFIX);
+		File f = new File(dir, name);
+		SpillFiles.write(f, data, from, data.length - from);
+		return f;
+	}
+
+	static long crc(byte[] data, int off, int len) {
+		CRC32 crc = new CRC32();
+		crc.update(data, off, len);
+		return crc.getValue();
+	}
+
+	/**
+	 * @return the port the aggregator listens on
+	 */
+	public int getPort() {
+		return server.getLocalPort();
+	}
+
+	/**
+	 * Stops accepting batches.  The appender is closed by log4j (or the
+	 * shutdown hook) as usual, publishing what was staged.
+	 */
+	public void close() {
+		closed = true;
+		try {
+			server.close();
+		} catch (IOException e) {
+			e.printStackTrace();
+		}
+		// Clients send their next batches elsewhere once disconnected
+		for (Socket s: sockets) {
+			try {
+				s.close();
+			} catch (IOException e) {
+				// already closed
+			}
+		}
+		connections.shutdownNow();
+	}
+
+	public static void main(String[] args) throws IOException {
+		if (args.length < 1) {
+			System.out.println("Usage: LogAggregator <log4j.properties> [appenderName] [port]");
+			System.exit(1);
+		}
+		PropertyConfigurator.configure(args[0]);
+		String name = args.length > 1 ? args[1] : DEFAULT_APPENDER_NAME;
+		int port = args.length > 2 ? Integer.parseInt(args[2]) : DEFAULT_PORT;
+		Appender appender = Logger.getRootLogger().getAppender(name);
+		if (!(appender instanceof S3LogAppender)) {
+			System.out.println("LogAggregator: no S3LogAppender named " + name + " on the root logger");
+			System.exit(1);
+		}
+		if (((S3LogAppender) appender).getAggregatorPort() > 0) {
+			System.out.println("LogAggregator: appender " + name + " must not itself use an aggregator");
+			System.exit(1);
+		}
+		if (null == ((S3LogAppender) appender).getSpillDirectory()) {
+			System.out.println("LogAggregator: appender " + name + " has no spillDir to journal batches in");
+			System.exit(1);
+		}
+		String token = ((S3LogAppender) appender).getAggregatorToken();
+		if (null == token || token.isEmpty()) {
+			System.out.println("LogAggregator: appender " + name + " has no aggregatorToken");
+			System.exit(1);
+		}
+		new LogAggregator(port, token, (S3LogAppender) appender).run();
+	}
+}
@@ -0,0 +1,97 @@
+package com.log4js3.logging.aws;
+
+import java.io.ByteArrayInputStream;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+
+import com.amazonaws.services.s3.AmazonS3Client;
+import com.amazonaws.services.s3.model.ObjectMetadata;
+import com.log4js3.logging.LoggingEventCache;
+
+/**
+ * Transport that hands uploads to worker threads and returns immediately, so
+ * the publish thread can move on to the next batch.  On Java 21 and later
+ * the workers are virtual threads (see {@link UploadExecutors}), so hundreds
+ * of uploads can be in flight without as many platform threads; on Java 8
+ * they share a small bounded pool of platform threads.
+ * <br>
+ * The number of uploads in flight is capped; once the cap is reached
+ * {@link #putObject} blocks until an upload completes, or fails the upload
+ * if the caller is interrupted while waiting.  Uploads of the same
+ * key (an auto-flushed object being republished) are chained so that an
+ * older version never overwrites a newer one.
+ *
+ */
+public class AsyncS3Transport implements IS3Transport {
+	private final AmazonS3Client client;
+	private final ExecutorService executor;
+	private final Semaphore permits;
+	private final Map<String, CompletableFuture<Void>> inFlight =
+		new ConcurrentHashMap<String, CompletableFuture<Void>>();
+
+	/**
+	 * @param client the client to upload with
+	 * @param maxInFlight maximum number of uploads in flight
+	 */
+	public AsyncS3Transport(AmazonS3Client client, int maxInFlight) {
+		this.client = client;
+		this.executor = UploadExecutors.newUploadExecutor(maxInFlight);
+		this.permits = new Semaphore(maxInFlight);
+	}
+
+	public CompletableFuture<Void> putObject(final String bucket, final String key,
+			final byte[] bytes, final ObjectMetadata metadata) {
+		try {
+			permits.acquire();
+		} catch (InterruptedException e) {
+			// Interrupted while shutting down; fails like any other upload
+			Thread.currentThread().interrupt();
+			CompletableFuture<Void> failed = new CompletableFuture<Void>();
+			failed.completeExceptionally(e);
+			return failed;
+		}
+		final Runnable upload = new Runnable() {
+			public void run() {
+				// Keeps events logged by the SDK from being appended again
+				Thread.currentThread().setName(LoggingEventCache.PUBLISH_THREAD_NAME);
+				client.putObject(bucket, key, new ByteArrayInputStream(bytes), metadata);
+			}
+		};
+		final CompletableFuture<Void> f;
+		try {
+			f = inFlight.compute(key, (k, previous) -> previous == null
+				? CompletableFuture.runAsync(upload, executor)
+				: previous.handle((v, t) -> null).thenRunAsync(upload, executor));
+		} catch (RuntimeException e) {
+			permits.release();
+			throw e;
+		}
+		f.whenComplete((v, t) -> {
+			permits.release();
+			inFlight.remove(key, f);
+		});
+		return f;
+	}
+
+	public boolean close(long timeout, TimeUnit unit) {
+		long deadline = System.nanoTime() + unit.toNanos(timeout);
+		try {
+			// Chained uploads are submitted as their predecessors complete, so
+			// keep waiting until nothing is left before shutting down
+			while (!inFlight.isEmpty()) {
+				CompletableFuture<?>[] pending = inFlight.values().toArray(new CompletableFuture<?>[0]);
+				CompletableFuture.allOf(pending).handle((v, t) -> null)
+					.get(deadline - System.nanoTime(), TimeUnit.NANOSECONDS);
+			}
+			executor.shutdown();
+			return executor.awaitTermination(deadline - System.nanoTime(), TimeUnit.NANOSECONDS);
+		} catch (Exception e) {
+			executor.shutdown();
+			return false;
+		}
+	}
+}
@@ -3,6 +3,7 @@ package com.log4js3.logging.aws;
 import java.lang.reflect.Constructor;
 
 import com.amazonaws.AmazonWebServiceClient;
+import com.amazonaws.ClientConfiguration;
 import com.amazonaws.auth.AWSCredentials;
 import com.amazonaws.auth.AWSCredentialsProvider;
 import com.amazonaws.auth.AWSCredentialsProviderChain;
@@ -73,12 +74,32 @@ public class AwsClientBuilder {
 	 *
 	 * @return an instance of the service client
 	 */
-	@SuppressWarnings("deprecation")
 	public <T extends AmazonWebServiceClient> T build(Class<T> clientClass) {
+		return build(clientClass, null);
+	}
+
+	/**
+	 * Build a service client class using the parameters set up for the builder
+	 *
+	 * @param clientClass the class of the service client to build
+	 * @param configuration client configuration (e.g. connection pool size),
+	 * 	or null for the defaults
+	 *
+	 * @return an instance of the service client
+	 */
+	@SuppressWarnings("deprecation")
+	public <T extends AmazonWebServiceClient> T build(Class<T> clientClass,
+			ClientConfiguration configuration) {
 		T client;
 		try {
-			Constructor<T> ctor = clientClass.getConstructor(AWSCredentialsProvider.class);
-			client = ctor.newInstance(getCredentialsProvider());
+			if (null == configuration) {
+				Constructor<T> ctor = clientClass.getConstructor(AWSCredentialsProvider.class);
+				client = ctor.newInstance(getCredentialsProvider());
+			} else {
+				Constructor<T> ctor = clientClass.getConstructor(
+					AWSCredentialsProvider.class, ClientConfiguration.class);
+				client = ctor.newInstance(getCredentialsProvider(), configuration);
+			}
 			client.setRegion(region);
 		} catch (Exception e) {
 			throw new IllegalArgumentException("Cannot build client", e);
@@ -0,0 +1,36 @@
+package com.log4js3.logging.aws;
+
+import java.io.ByteArrayInputStream;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+
+import com.amazonaws.services.s3.AmazonS3Client;
+import com.amazonaws.services.s3.model.ObjectMetadata;
+
+/**
+ * Transport that uploads on the calling (publish) thread.
+ *
+ */
+public class BlockingS3Transport implements IS3Transport {
+	private final AmazonS3Client client;
+
+	public BlockingS3Transport(AmazonS3Client client) {
+		this.client = client;
+	}
+
+	public CompletableFuture<Void> putObject(String bucket, String key, byte[] bytes,
+			ObjectMetadata metadata) {
+		CompletableFuture<Void> f = new CompletableFuture<Void>();
+		try {
+			client.putObject(bucket, key, new ByteArrayInputStream(bytes), metadata);
+			f.complete(null);
+		} catch (RuntimeException e) {
+			f.completeExceptionally(e);
+		}
+		return f;
+	}
+
+	public boolean close(long timeout, TimeUnit unit) {
+		return true;
+	}
+}
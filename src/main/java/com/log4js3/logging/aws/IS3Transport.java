@@ -0,0 +1,34 @@
+package com.log4js3.logging.aws;
+
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+
+import com.amazonaws.services.s3.model.ObjectMetadata;
+
+/**
+ * Transport used by {@link S3PublishHelper} to upload finished objects.
+ *
+ */
+public interface IS3Transport {
+	/**
+	 * Uploads an object.  Uploads of the same key are applied in the order
+	 * they were requested.
+	 *
+	 * @param bucket the bucket to upload to
+	 * @param key the key of the object
+	 * @param bytes the content of the object
+	 * @param metadata metadata of the object
+	 * @return a future completed once the object is stored
+	 */
+	CompletableFuture<Void> putObject(String bucket, String key, byte[] bytes,
+		ObjectMetadata metadata);
+
+	/**
+	 * Waits for uploads in flight and releases resources.
+	 *
+	 * @param timeout maximum time to wait
+	 * @param unit unit of the timeout
+	 * @return true if all uploads completed in time
+	 */
+	boolean close(long timeout, TimeUnit unit);
+}
@@ -1,6 +1,8 @@
 package com.log4js3.logging.aws;
 
+import com.amazonaws.ClientConfiguration;
 import com.amazonaws.regions.Regions;
+import com.amazonaws.services.s3.AmazonS3Client;
 
 /**
  * S3 connectivity/configuration
@@ -11,11 +13,16 @@ import com.amazonaws.regions.Regions;
  */
 public class S3Configuration {
 	public static final String DEFAULT_AWS_REGION = Regions.US_EAST_1.name();
+	public static final String TRANSPORT_BLOCKING = "blocking";
+	public static final String TRANSPORT_ASYNC = "async";
+	public static final int DEFAULT_UPLOAD_CONCURRENCY = 64;
 
 	private String accessKey = null;
 	private String secretKey = null;
 	private String region = DEFAULT_AWS_REGION;
 	private String path;
+	private String transport = TRANSPORT_BLOCKING;
+	private int uploadConcurrency = DEFAULT_UPLOAD_CONCURRENCY;
 
 	public String getAccessKey() {
 		return accessKey;
@@ -41,5 +48,45 @@ public class S3Configuration {
 	public void setPath(String path) {
 		this.path = path;
 	}
+	public String getTransport() {
+		return transport;
+	}
+	public void setTransport(String transport) {
+		this.transport = transport.trim().toLowerCase();
+	}
+	public int getUploadConcurrency() {
+		return uploadConcurrency;
+	}
+	public void setUploadConcurrency(int uploadConcurrency) {
+		this.uploadConcurrency = uploadConcurrency;
+	}
+
+	/**
+	 * Creates a client for the configured region and credentials, with
+	 * enough connections for the configured transport.
+	 *
+	 * @return the client
+	 */
+	public AmazonS3Client createClient() {
+		AwsClientBuilder builder =
+			new AwsClientBuilder(Regions.valueOf(region), accessKey, secretKey);
+		ClientConfiguration clientConfig = null;
+		if (TRANSPORT_ASYNC.equals(transport))
+			clientConfig = new ClientConfiguration().withMaxConnections(
+				Math.max(ClientConfiguration.DEFAULT_MAX_CONNECTIONS, uploadConcurrency));
+		return builder.build(AmazonS3Client.class, clientConfig);
+	}
+
+	/**
+	 * Creates the transport for uploads as configured.
+	 *
+	 * @param client the client to upload with
+	 * @return the transport
+	 */
+	public IS3Transport createTransport(AmazonS3Client client) {
+		if (TRANSPORT_ASYNC.equals(transport))
+			return new AsyncS3Transport(client, uploadConcurrency);
+		return new BlockingS3Transport(client);
+	}
 
 }
@@ -1,17 +1,17 @@
 package com.log4js3.logging.aws;
 
-import java.io.ByteArrayInputStream;
-import java.io.ByteArrayOutputStream;
 import java.io.IOException;
-import java.util.zip.GZIPOutputStream;
-
-import org.apache.http.entity.ContentType;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
 
 import com.amazonaws.services.s3.AmazonS3Client;
 import com.amazonaws.services.s3.model.AmazonS3Exception;
 import com.amazonaws.services.s3.model.ObjectMetadata;
+import com.log4js3.logging.ByteChunks;
+import com.log4js3.logging.EncodedBatch;
 import com.log4js3.logging.PublishContext;
-import com.log4js3.logging.log4j.IPublishHelper;
+import com.log4js3.logging.log4j.BatchCollector;
+import com.log4js3.logging.log4j.IEncodedPublishHelper;
 
 /**
  * Implementation to publish log events to S3.
@@ -31,18 +31,30 @@ import com.log4js3.logging.log4j.IPublishHelper;
  * @author Plamen Parvanov
  *
  */
-public class S3PublishHelper implements IPublishHelper {
+public class S3PublishHelper implements IEncodedPublishHelper {
 	private static final String S3ERRCODE_BUCKETALREADYOWNEDBYYOU = "BucketAlreadyOwnedByYou";
 
 	private final AmazonS3Client client;
+	private final IS3Transport transport;
 	private final String bucket;
 	private final String path;
 
 	private volatile boolean bucketExists = false;
-	private volatile StringBuilder stringBuilder = new StringBuilder();
+	// Off-heap staged batch, compressed straight from its chunks in end()
+	private final BatchCollector collector = new BatchCollector();
 
 	public S3PublishHelper(AmazonS3Client client, String path) {
+		this(client, new BlockingS3Transport(client), path);
+	}
+
+	/**
+	 * @param client the client for bucket management
+	 * @param transport the transport uploading finished objects
+	 * @param path bucket and key prefix to publish to
+	 */
+	public S3PublishHelper(AmazonS3Client client, IS3Transport transport, String path) {
 		this.client = client;
+		this.transport = transport;
 		String[] pp = path.split("/", 2);
 		this.bucket = pp[0].toLowerCase();
 		path = pp[1];
@@ -50,7 +62,11 @@ public class S3PublishHelper implements IPublishHelper {
 	}
 
 	public void publish(PublishContext context, String log) {
-		stringBuilder.append(log);
+		collector.append(log);
+	}
+
+	public void publish(PublishContext context, ByteChunks logs) {
+		collector.append(logs);
 	}
 
 	public void start(PublishContext context) {
@@ -80,37 +96,42 @@ public class S3PublishHelper implements IPublishHelper {
 		}
 	}
 
-	private String emptyBuffer() {
-		StringBuilder sb = stringBuilder;
-		stringBuilder = new StringBuilder();
-		return sb.toString();
+	public void end(PublishContext context) {
+		endAsync(context);
 	}
 
-	byte[] gzip(byte[] data) throws IOException {
-		ByteArrayOutputStream buf = new ByteArrayOutputStream();
-		GZIPOutputStream out = new GZIPOutputStream(buf);
-		out.write(data);
-		out.finish();
-		return buf.toByteArray();
+	public CompletableFuture<Void> endAsync(PublishContext context) {
+		try {
+			return publish(context, collector.take().encode(context));
+		} catch (IOException e) {
+			e.printStackTrace();
+			CompletableFuture<Void> f = new CompletableFuture<Void>();
+			f.completeExceptionally(e);
+			return f;
+		}
 	}
 
-	public void end(PublishContext context) {
-		String key = String.format("%s%s", path, context.cacheName);
+	public CompletableFuture<Void> publish(PublishContext context, EncodedBatch batch) {
+		start(context);
+		final String key = String.format("%s%s", path, context.cacheName);
 		System.out.println(String.format("Publishing to S3 (%s/%s):", bucket, key));
 
-		String data = emptyBuffer();
-		try {
-			ObjectMetadata metadata = new ObjectMetadata();
-			byte bytes[] = data.getBytes("UTF-8");
-			if(context.gzip) {
-				bytes = gzip(bytes);
-				metadata.setContentEncoding("gzip");
+		ObjectMetadata metadata = new ObjectMetadata();
+		if (null != batch.contentEncoding)
+			metadata.setContentEncoding(batch.contentEncoding);
+		metadata.setContentLength(batch.bytes.length);
+		metadata.setContentType(batch.contentType);
+		CompletableFuture<Void> f = transport.putObject(bucket, key, batch.bytes, metadata);
+		f.whenComplete((v, t) -> {
+			if (t != null) {
+				System.out.println(String.format("Failed to publish to S3 (%s/%s): %s", bucket, key, t));
 			}
-			metadata.setContentLength(bytes.length);
-			metadata.setContentType(ContentType.TEXT_PLAIN.getMimeType());
-			client.putObject(bucket, key, new ByteArrayInputStream(bytes), metadata);
-		} catch (IOException e) {
-			e.printStackTrace();
-		}
+		});
+		return f;
+	}
+
+	public void close(long timeout, TimeUnit unit) {
+		if (!transport.close(timeout, unit))
+			System.out.println("S3PublishHelper: uploads still in flight after close");
 	}
 }
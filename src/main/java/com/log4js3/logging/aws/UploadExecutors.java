@@ -0,0 +1,36 @@
+package com.log4js3.logging.aws;
+
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+import com.log4js3.logging.DeamonThreadFactory;
+
+/**
+ * Creates the executor running uploads of {@link AsyncS3Transport}.  This is
+ * the Java 8 version using a bounded pool of (daemon) platform threads:
+ * uploads in flight beyond {@link #MAX_PLATFORM_THREADS} wait for a thread
+ * instead of each getting their own.  The multi-release jar carries a Java 21
+ * version using virtual threads in META-INF/versions/21.
+ *
+ */
+final class UploadExecutors {
+	static final int MAX_PLATFORM_THREADS = 16;
+
+	private UploadExecutors() {
+	}
+
+	/**
+	 * @param maxInFlight maximum number of uploads in flight
+	 * @return the executor
+	 */
+	static ExecutorService newUploadExecutor(int maxInFlight) {
+		int threads = Math.max(1, Math.min(maxInFlight, MAX_PLATFORM_THREADS));
+		// The queue is bounded by the transport's cap on uploads in flight
+		ThreadPoolExecutor executor = new ThreadPoolExecutor(threads, threads,
+			60, TimeUnit.SECONDS, new LinkedBlockingQueue<Runnable>(), new DeamonThreadFactory());
+		executor.allowCoreThreadTimeOut(true);
+		return executor;
+	}
+}
@@ -0,0 +1,283 @@
+package com.log4js3.logging.codec;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.Calendar;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.TimeZone;
+
+import org.apache.log4j.Level;
+import org.apache.log4j.spi.LoggingEvent;
+
+/**
+ * Renders log events as JSON lines, one object per event, straight into a
+ * reusable UTF-8 byte buffer:
+ * <pre>
+ * {"ts":"2019-06-08T13:20:00.123Z","level":"INFO","logger":"com.acme.Foo",
+ *  "thread":"main","mdc":{"user":"42"},"msg":"...","throwable":"..."}
+ * </pre>
+ * (on one line; "mdc" and "throwable" only when present).  Text is escaped
+ * and encoded char by char without intermediate Strings, and the escaped
+ * bytes of recurring values (levels, loggers, threads, MDC keys) are cached.
+ * The buffer grows with the bytes actually written, and is dropped after an
+ * event larger than {@link #MAX_RETAINED_SIZE}, so that one huge message
+ * does not pin a large buffer to every logging thread.
+ * <br>
+ * Instances are not thread-safe; use {@link #forCurrentThread()}.
+ *
+ */
+public class JsonLinesEncoder {
+	static final int MAX_CACHED_NAMES = 1024;
+	static final int MAX_CACHED_NAME_LENGTH = 256;
+	static final int DEFAULT_BUFFER_SIZE = 1024;
+	static final int MAX_RETAINED_SIZE = 64 * 1024;
+	// Chars escaped per check for room, at up to 6 bytes each
+	static final int ESCAPE_STEP = 1024;
+
+	private static final byte[] HEX = bytes("0123456789abcdef");
+	private static final byte[] TS = bytes("{\"ts\":\"");
+	private static final byte[] LEVEL = bytes("\",\"level\":");
+	private static final byte[] LOGGER = bytes(",\"logger\":");
+	private static final byte[] THREAD = bytes(",\"thread\":");
+	private static final byte[] MDC = bytes(",\"mdc\":{");
+	private static final byte[] MSG = bytes(",\"msg\":");
+	private static final byte[] THROWABLE = bytes(",\"throwable\":");
+	private static final byte[] NULL = bytes("null");
+
+	private static final ThreadLocal<JsonLinesEncoder> ENCODERS = new ThreadLocal<JsonLinesEncoder>() {
+		@Override
+		protected JsonLinesEncoder initialValue() {
+			return new JsonLinesEncoder();
+		}
+	};
+
+	private final Map<String, byte[]> names = new HashMap<String, byte[]>();
+	private final Calendar calendar = Calendar.getInstance(TimeZone.getTimeZone("UTC"));
+	// "yyyy-MM-ddTHH:mm:ss." of the last second formatted
+	private final byte[] secondPrefix = new byte[20];
+	private long lastSecond = Long.MIN_VALUE;
+
+	private byte[] buf = new byte[DEFAULT_BUFFER_SIZE];
+	private int len;
+
+	/**
+	 * @return the encoder of the calling thread
+	 */
+	public static JsonLinesEncoder forCurrentThread() {
+		return ENCODERS.get();
+	}
+
+	/**
+	 * Encodes an event, followed by a newline, replacing the previous
+	 * content of the buffer.
+	 *
+	 * @param e the event
+	 * @return the number of bytes written to {@link #buffer()}
+	 */
+	public int encode(LoggingEvent e) {
+		if (buf.length > MAX_RETAINED_SIZE)
+			buf = new byte[DEFAULT_BUFFER_SIZE];
+		len = 0;
+		put(TS);
+		putTimeStamp(e.timeStamp);
+		put(LEVEL);
+		Level level = e.getLevel();
+		putName(null == level ? null : level.toString());
+		put(LOGGER);
+		putName(e.getLoggerName());
+		put(THREAD);
+		putName(e.getThreadName());
+
+		Map<?, ?> mdc = e.getProperties();
+		if (null != mdc && !mdc.isEmpty()) {
+			put(MDC);
+			boolean first = true;
+			for (Map.Entry<?, ?> entry: mdc.entrySet()) {
+				if (!first) put((byte) ',');
+				first = false;
+				putName(String.valueOf(entry.getKey()));
+				put((byte) ':');
+				Object v = entry.getValue();
+				putString(null == v ? null : v.toString());
+			}
+			put((byte) '}');
+		}
+
+		put(MSG);
+		putString(e.getRenderedMessage());
+		String[] throwable = null == e.getThrowableInformation() ? null : e.getThrowableStrRep();
+		if (null != throwable && throwable.length > 0) {
+			put(THROWABLE);
+			put((byte) '"');
+			for (int i = 0; i < throwable.length; i++) {
+				if (i > 0) put((byte) '\\', (byte) 'n');
+				putEscaped(throwable[i]);
+			}
+			put((byte) '"');
+		}
+		put((byte) '}', (byte) '\n');
+		return len;
+	}
+
+	/**
+	 * Retrieves the buffer holding the last encoded event.  It is reused
+	 * (and may be replaced) by the next call to {@link #encode(LoggingEvent)},
+	 * so call this after encoding, not in the same expression before it.
+	 *
+	 * @return the buffer; valid bytes start at 0
+	 */
+	public byte[] buffer() {
+		return buf;
+	}
+
+	/**
+	 * @return the number of bytes of the last encoded event
+	 */
+	public int length() {
+		return len;
+	}
+
+	private void putTimeStamp(long timeStamp) {
+		long second = Math.floorDiv(timeStamp, 1000L);
+		if (second != lastSecond) {
+			calendar.setTimeInMillis(second * 1000L);
+			int p = 0;
+			p = digits(secondPrefix, p, calendar.get(Calendar.YEAR), 4);
+			secondPrefix[p++] = '-';
+			p = digits(secondPrefix, p, calendar.get(Calendar.MONTH) + 1, 2);
+			secondPrefix[p++] = '-';
+			p = digits(secondPrefix, p, calendar.get(Calendar.DAY_OF_MONTH), 2);
+			secondPrefix[p++] = 'T';
+			p = digits(secondPrefix, p, calendar.get(Calendar.HOUR_OF_DAY), 2);
+			secondPrefix[p++] = ':';
+			p = digits(secondPrefix, p, calendar.get(Calendar.MINUTE), 2);
+			secondPrefix[p++] = ':';
+			p = digits(secondPrefix, p, calendar.get(Calendar.SECOND), 2);
+			secondPrefix[p] = '.';
+			lastSecond = second;
+		}
+		put(secondPrefix);
+		ensure(4);
+		len = digits(buf, len, (int) Math.floorMod(timeStamp, 1000L), 3);
+		buf[len++] = 'Z';
+	}
+
+	private static int digits(byte[] dst, int p, int value, int width) {
+		for (int i = p + width - 1; i >= p; i--) {
+			dst[i] = (byte) ('0' + value % 10);
+			value /= 10;
+		}
+		return p + width;
+	}
+
+	/**
+	 * Writes a quoted string whose escaped bytes are worth caching.
+	 */
+	private void putName(String s) {
+		if (null == s) {
+			put(NULL);
+			return;
+		}
+		byte[] cached = names.get(s);
+		if (null == cached) {
+			int start = len;
+			putString(s);
+			if (s.length() > MAX_CACHED_NAME_LENGTH) return;
+			if (names.size() >= MAX_CACHED_NAMES) names.clear();
+			names.put(s, Arrays.copyOfRange(buf, start, len));
+			return;
+		}
+		put(cached);
+	}
+
+	private void putString(String s) {
+		if (null == s) {
+			put(NULL);
+			return;
+		}
+		put((byte) '"');
+		putEscaped(s);
+		put((byte) '"');
+	}
+
+	private void putEscaped(String s) {
+		int n = s.length();
+		for (int i = 0; i < n;) {
+			// Worst case: 6 bytes per char (\\u00XX), 4 bytes per surrogate
+			// pair; room is made a step at a time, so that the buffer grows
+			// with the bytes written rather than 6 times the length
+			int end = Math.min(n, i + ESCAPE_STEP);
+			ensure((end - i) * 6);
+			byte[] b = buf;
+			int p = len;
+			for (; i < end; i++) {
+				char c = s.charAt(i);
+				if (c < 0x80) {
+					if (c >= 0x20 && c != '"' && c != '\\') {
+						b[p++] = (byte) c;
+						continue;
+					}
+					b[p++] = '\\';
+					switch (c) {
+					case '"': b[p++] = '"'; break;
+					case '\\': b[p++] = '\\'; break;
+					case '\n': b[p++] = 'n'; break;
+					case '\r': b[p++] = 'r'; break;
+					case '\t': b[p++] = 't'; break;
+					default:
+						b[p++] = 'u';
+						b[p++] = '0';
+						b[p++] = '0';
+						b[p++] = HEX[c >> 4];
+						b[p++] = HEX[c & 0xf];
+					}
+				} else if (c < 0x800) {
+					b[p++] = (byte) (0xc0 | (c >> 6));
+					b[p++] = (byte) (0x80 | (c & 0x3f));
+				} else if (Character.isHighSurrogate(c) && i + 1 < n
+						&& Character.isLowSurrogate(s.charAt(i + 1))) {
+					int cp = Character.toCodePoint(c, s.charAt(++i));
+					b[p++] = (byte) (0xf0 | (cp >> 18));
+					b[p++] = (byte) (0x80 | ((cp >> 12) & 0x3f));
+					b[p++] = (byte) (0x80 | ((cp >> 6) & 0x3f));
+					b[p++] = (byte) (0x80 | (cp & 0x3f));
+				} else if (Character.isSurrogate(c)) {
+					// Unpaired surrogate
+					b[p++] = '?';
+				} else {
+					b[p++] = (byte) (0xe0 | (c >> 12));
+					b[p++] = (byte) (0x80 | ((c >> 6) & 0x3f));
+					b[p++] = (byte) (0x80 | (c & 0x3f));
+				}
+			}
+			len = p;
+		}
+	}
+
+	private void put(byte[] bytes) {
+		ensure(bytes.length);
+		System.arraycopy(bytes, 0, buf, len, bytes.length);
+		len += bytes.length;
+	}
+
+	private void put(byte b) {
+		ensure(1);
+		buf[len++] = b;
+	}
+
+	private void put(byte b1, byte b2) {
+		ensure(2);
+		buf[len++] = b1;
+		buf[len++] = b2;
+	}
+
+	private void ensure(int n) {
+		if (len + n > buf.length)
+			buf = Arrays.copyOf(buf, Math.max(buf.length * 2, len + n));
+	}
+
+	private static byte[] bytes(String s) {
+		return s.getBytes(StandardCharsets.UTF_8);
+	}
+}
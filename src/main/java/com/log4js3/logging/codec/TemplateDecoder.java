@@ -0,0 +1,137 @@
+package com.log4js3.logging.codec;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayInputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Decodes batches written by {@link TemplateEncoder} back into the original
+ * text, for readers of objects published with the template encoding.
+ *
+ */
+public class TemplateDecoder {
+	private static final char[] ZEROS = new char[TemplateEncoder.MAX_DELTA_DIGITS];
+
+	static class Template {
+		final String text;
+		final long[] previous;
+
+		Template(String text) {
+			this.text = text;
+			int params = 0;
+			for (int i = 0; i < text.length(); i++)
+				if (text.charAt(i) == TemplateEncoder.PLACEHOLDER) params++;
+			this.previous = new long[params];
+		}
+	}
+
+	static {
+		Arrays.fill(ZEROS, '0');
+	}
+
+	/**
+	 * Decodes an encoded batch.
+	 *
+	 * @param data the encoded batch
+	 * @return the original text
+	 * @throws IOException if the data is not a valid encoded batch
+	 */
+	public static String decode(byte[] data) throws IOException {
+		return decode(new ByteArrayInputStream(data));
+	}
+
+	/**
+	 * Decodes an encoded batch, reading the stream to its end.
+	 *
+	 * @param stream the encoded batch (not gzip compressed)
+	 * @return the original text
+	 * @throws IOException if the stream cannot be read or is not a valid
+	 * 	encoded batch
+	 */
+	public static String decode(InputStream stream) throws IOException {
+		InputStream in = new BufferedInputStream(stream);
+		for (byte b : TemplateEncoder.MAGIC) {
+			if (in.read() != b)
+				throw new IOException("Not a template encoded log batch");
+		}
+		List<Template> templates = new ArrayList<Template>();
+		StringBuilder sb = new StringBuilder();
+		long record;
+		while ((record = readVarint(in, true)) >= 0) {
+			if (record == TemplateEncoder.REC_TEMPLATE) {
+				templates.add(new Template(readString(in)));
+			} else if (record == TemplateEncoder.REC_LITERAL) {
+				sb.append(readString(in));
+			} else {
+				long id = record - TemplateEncoder.REC_FIRST_ID;
+				if (id >= templates.size())
+					throw new IOException("Unknown template id " + id);
+				appendLine(sb, templates.get((int) id), in);
+			}
+		}
+		return sb.toString();
+	}
+
+	private static void appendLine(StringBuilder sb, Template t, InputStream in) throws IOException {
+		String text = t.text;
+		int p = 0;
+		for (int i = 0; i < text.length(); i++) {
+			char c = text.charAt(i);
+			if (c != TemplateEncoder.PLACEHOLDER) {
+				sb.append(c);
+				continue;
+			}
+			int digits = (int) readVarint(in, false);
+			if (digits <= TemplateEncoder.MAX_DELTA_DIGITS) {
+				long delta = readVarint(in, false);
+				long value = t.previous[p] + ((delta >>> 1) ^ -(delta & 1));
+				t.previous[p] = value;
+				String s = Long.toString(value);
+				if (s.length() > digits)
+					throw new IOException("Corrupt parameter in template " + text);
+				sb.append(ZEROS, 0, digits - s.length()).append(s);
+			} else {
+				for (int d = 0; d < digits; d++)
+					sb.append((char) readByte(in));
+			}
+			p++;
+		}
+	}
+
+	private static String readString(InputStream in) throws IOException {
+		int len = (int) readVarint(in, false);
+		byte[] bytes = new byte[len];
+		for (int off = 0; off < len; ) {
+			int r = in.read(bytes, off, len - off);
+			if (r < 0) throw new EOFException();
+			off += r;
+		}
+		return new String(bytes, StandardCharsets.UTF_8);
+	}
+
+	private static int readByte(InputStream in) throws IOException {
+		int b = in.read();
+		if (b < 0) throw new EOFException();
+		return b;
+	}
+
+	private static long readVarint(InputStream in, boolean eofAllowed) throws IOException {
+		long v = 0;
+		for (int shift = 0; shift < 64; shift += 7) {
+			int b = in.read();
+			if (b < 0) {
+				if (eofAllowed && shift == 0) return -1;
+				throw new EOFException();
+			}
+			v |= (long) (b & 0x7f) << shift;
+			if ((b & 0x80) == 0) return v;
+		}
+		throw new IOException("Malformed varint");
+	}
+}
@@ -0,0 +1,158 @@
+package com.log4js3.logging.codec;
+
+import java.io.ByteArrayOutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Compact, template-aware encoding for a batch of rendered log lines.
+ * <br>
+ * Each line is split into a template (the line with every run of decimal
+ * digits replaced by a placeholder) and the list of those digit runs.  The
+ * first time a template is seen in the batch it is added to the batch's
+ * dictionary; after that a line is stored as the template id followed by
+ * its parameters.  Digit runs are stored as the difference to the value in
+ * the same position of the previous line with that template, so timestamps
+ * and counters typically cost one or two bytes.
+ * <br>
+ * Layout of an encoded batch (all integers are unsigned LEB128 varints):
+ * <ul>
+ *   <li>{@link #MAGIC}</li>
+ *   <li>records until the end of the stream:
+ *     <ul>
+ *       <li>0, length, UTF-8 template -- defines the next template id</li>
+ *       <li>1, length, UTF-8 line -- a line stored verbatim</li>
+ *       <li>id + 2, then per placeholder: digit count and, for up to
+ *       	{@link #MAX_DELTA_DIGITS} digits, the zigzag delta to the previous
+ *       	value, otherwise the ASCII digits</li>
+ *     </ul>
+ *   </li>
+ * </ul>
+ * {@link TemplateDecoder} reproduces the original text exactly, except
+ * for unpaired surrogates, which UTF-8 cannot represent: like in the text
+ * encoding, they come back as '?'.  On gzip-compressed batches of typical
+ * application logs the gain over gzipped text is moderate (about 1.4x
+ * smaller in TemplateEncodingBenchmark), and it depends on how much of the
+ * lines are numbers.  An encoder keeps the dictionary of one batch and is
+ * not thread-safe.
+ *
+ */
+public class TemplateEncoder {
+	public static final byte[] MAGIC = {'L', '4', 'S', '3', 'T', '1'};
+
+	static final char PLACEHOLDER = '\u0000';
+	static final int MAX_DELTA_DIGITS = 18;
+
+	static final int REC_TEMPLATE = 0;
+	static final int REC_LITERAL = 1;
+	static final int REC_FIRST_ID = 2;
+
+	static class Template {
+		final int id;
+		final long[] previous;
+
+		Template(int id, int params) {
+			this.id = id;
+			this.previous = new long[params];
+		}
+	}
+
+	private final Map<String, Template> templates = new HashMap<String, Template>();
+	private final StringBuilder template = new StringBuilder();
+	private int[] runs = new int[16];
+	private ByteArrayOutputStream out;
+
+	/**
+	 * Encodes the text of a batch.  Lines are terminated by '\n'; the last
+	 * line may be unterminated.
+	 *
+	 * @param text the rendered log lines
+	 * @return the encoded batch
+	 */
+	public byte[] encode(CharSequence text) {
+		templates.clear();
+		out = new ByteArrayOutputStream(Math.max(64, text.length() / 4));
+		out.write(MAGIC, 0, MAGIC.length);
+		int start = 0, n = text.length();
+		while (start < n) {
+			int end = start;
+			while (end < n && text.charAt(end) != '\n') end++;
+			if (end < n) end++;
+			encodeLine(text, start, end);
+			start = end;
+		}
+		byte[] res = out.toByteArray();
+		out = null;
+		return res;
+	}
+
+	private void encodeLine(CharSequence text, int start, int end) {
+		template.setLength(0);
+		int params = 0;
+		for (int i = start; i < end; ) {
+			char c = text.charAt(i);
+			if (c == PLACEHOLDER) {
+				writeString(REC_LITERAL, text.subSequence(start, end).toString());
+				return;
+			}
+			if (c >= '0' && c <= '9') {
+				int j = i + 1;
+				while (j < end && text.charAt(j) >= '0' && text.charAt(j) <= '9') j++;
+				if (2 * params + 2 > runs.length)
+					runs = Arrays.copyOf(runs, runs.length * 2);
+				runs[2 * params] = i;
+				runs[2 * params + 1] = j;
+				params++;
+				template.append(PLACEHOLDER);
+				i = j;
+			} else {
+				template.append(c);
+				i++;
+			}
+		}
+		String key = template.toString();
+		Template t = templates.get(key);
+		if (t == null) {
+			t = new Template(templates.size(), params);
+			templates.put(key, t);
+			writeString(REC_TEMPLATE, key);
+		}
+		writeVarint(out, REC_FIRST_ID + t.id);
+		for (int p = 0; p < params; p++) {
+			int from = runs[2 * p], to = runs[2 * p + 1];
+			int digits = to - from;
+			writeVarint(out, digits);
+			if (digits <= MAX_DELTA_DIGITS) {
+				long value = 0;
+				for (int i = from; i < to; i++)
+					value = value * 10 + (text.charAt(i) - '0');
+				writeVarint(out, zigzag(value - t.previous[p]));
+				t.previous[p] = value;
+			} else {
+				for (int i = from; i < to; i++)
+					out.write(text.charAt(i));
+			}
+		}
+	}
+
+	private void writeString(int record, String s) {
+		byte[] bytes = s.getBytes(StandardCharsets.UTF_8);
+		writeVarint(out, record);
+		writeVarint(out, bytes.length);
+		out.write(bytes, 0, bytes.length);
+	}
+
+	static long zigzag(long v) {
+		return (v << 1) ^ (v >> 63);
+	}
+
+	static void writeVarint(ByteArrayOutputStream out, long v) {
+		while ((v & ~0x7fL) != 0) {
+			out.write((int) ((v & 0x7f) | 0x80));
+			v >>>= 7;
+		}
+		out.write((int) v);
+	}
+}
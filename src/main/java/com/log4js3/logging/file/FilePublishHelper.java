@@ -0,0 +1,96 @@
+package com.log4js3.logging.file;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.concurrent.CompletableFuture;
+
+import com.log4js3.logging.ByteChunks;
+import com.log4js3.logging.EncodedBatch;
+import com.log4js3.logging.PublishContext;
+import com.log4js3.logging.log4j.BatchCollector;
+import com.log4js3.logging.log4j.IEncodedPublishHelper;
+
+/**
+ * Implementation to publish log events to files in a local directory, using
+ * the same names (and date directories) as the objects stored in S3.  Each
+ * batch is written to a temporary file through a FileChannel and then moved
+ * into place, so readers never see a partially written batch.
+ *
+ */
+public class FilePublishHelper implements IEncodedPublishHelper {
+	static final String TEMP_SUFFIX = ".tmp";
+
+	private final Path root;
+
+	private final BatchCollector collector = new BatchCollector();
+
+	public FilePublishHelper(String rootPath) {
+		this.root = Paths.get(rootPath);
+	}
+
+	public void start(PublishContext context) {
+		collector.reset();
+	}
+
+	public void publish(PublishContext context, String log) {
+		collector.append(log);
+	}
+
+	public void publish(PublishContext context, ByteChunks logs) {
+		collector.append(logs);
+	}
+
+	public void end(PublishContext context) {
+		endAsync(context);
+	}
+
+	public CompletableFuture<Void> endAsync(PublishContext context) {
+		try {
+			return publish(context, collector.take().encode(context));
+		} catch (IOException e) {
+			e.printStackTrace();
+			CompletableFuture<Void> f = new CompletableFuture<Void>();
+			f.completeExceptionally(e);
+			return f;
+		}
+	}
+
+	public CompletableFuture<Void> publish(PublishContext context, EncodedBatch batch) {
+		Path target = root.resolve(context.cacheName);
+		CompletableFuture<Void> f = new CompletableFuture<Void>();
+		try {
+			write(target, batch.bytes);
+			f.complete(null);
+		} catch (IOException e) {
+			System.out.println(String.format("Failed to publish to %s: %s", target, e));
+			f.completeExceptionally(e);
+		}
+		return f;
+	}
+
+	static void write(Path target, byte[] bytes) throws IOException {
+		Path dir = target.getParent();
+		if (null != dir)
+			Files.createDirectories(dir);
+		Path temp = target.resolveSibling(target.getFileName() + TEMP_SUFFIX);
+		try (FileChannel channel = FileChannel.open(temp, StandardOpenOption.CREATE,
+				StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+			ByteBuffer buf = ByteBuffer.wrap(bytes);
+			while (buf.hasRemaining())
+				channel.write(buf);
+			channel.force(false);
+		}
+		try {
+			Files.move(temp, target, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+		} catch (AtomicMoveNotSupportedException e) {
+			Files.move(temp, target, StandardCopyOption.REPLACE_EXISTING);
+		}
+	}
+}
@@ -0,0 +1,148 @@
+package com.log4js3.logging.index;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Arrays;
+
+/**
+ * A Bloom filter over string tokens, stored next to a published object so
+ * that readers can skip objects that definitely do not contain a token.
+ * <br>
+ * Serialized form: the magic "L4S3B2", the number of hash functions (int),
+ * the number of bits (int) and the bit set (longs).  Tokens are hashed
+ * char by char with a 64-bit FNV-1a hash, split into two 32-bit halves for
+ * double hashing (the second made odd).
+ *
+ */
+public class BloomFilter {
+	static final byte[] MAGIC = {'L', '4', 'S', '3', 'B', '2'};
+	static final int MAX_BITS = Integer.MAX_VALUE - 63;
+
+	private final int hashes;
+	private final int bits;
+	private final long[] words;
+
+	/**
+	 * Creates an empty filter sized for the expected number of distinct
+	 * tokens and the target false positive rate.
+	 *
+	 * @param expectedTokens number of distinct tokens to be put
+	 * @param falsePositiveRate target probability (0 to 1, exclusive) that
+	 * 	{@link #mightContain(CharSequence)} is true for a token not put
+	 */
+	public BloomFilter(int expectedTokens, double falsePositiveRate) {
+		if (falsePositiveRate <= 0 || falsePositiveRate >= 1)
+			throw new IllegalArgumentException("falsePositiveRate must be between 0 and 1");
+		int n = Math.max(1, expectedTokens);
+		double m = -n * Math.log(falsePositiveRate) / (Math.log(2) * Math.log(2));
+		this.bits = (int) Math.max(64, Math.min(MAX_BITS, Math.ceil(m)));
+		this.hashes = Math.max(1, (int) Math.round((double) bits / n * Math.log(2)));
+		this.words = new long[(bits + 63) >>> 6];
+	}
+
+	private BloomFilter(int hashes, int bits, long[] words) {
+		this.hashes = hashes;
+		this.bits = bits;
+		this.words = words;
+	}
+
+	/**
+	 * Adds a token.
+	 *
+	 * @param token the token
+	 */
+	public void put(CharSequence token) {
+		long h = hash(token);
+		int h1 = (int) h;
+		int h2 = stride(h);
+		for (int i = 0; i < hashes; i++) {
+			int bit = ((h1 + i * h2) & Integer.MAX_VALUE) % bits;
+			words[bit >>> 6] |= 1L << bit;
+		}
+	}
+
+	/**
+	 * Tests for a token.
+	 *
+	 * @param token the token
+	 * @return false if the token was definitely not put, true if it
+	 * 	probably was
+	 */
+	public boolean mightContain(CharSequence token) {
+		long h = hash(token);
+		int h1 = (int) h;
+		int h2 = stride(h);
+		for (int i = 0; i < hashes; i++) {
+			int bit = ((h1 + i * h2) & Integer.MAX_VALUE) % bits;
+			if ((words[bit >>> 6] & (1L << bit)) == 0)
+				return false;
+		}
+		return true;
+	}
+
+	// Odd, so that the probes of a token do not collapse onto a few bits
+	// when the number of bits is a power of two
+	static int stride(long h) {
+		return (int) (h >>> 32) | 1;
+	}
+
+	static long hash(CharSequence s) {
+		long h = 0xcbf29ce484222325L;
+		for (int i = 0; i < s.length(); i++) {
+			char c = s.charAt(i);
+			h = (h ^ (c & 0xff)) * 0x100000001b3L;
+			h = (h ^ (c >>> 8)) * 0x100000001b3L;
+		}
+		// Final mix so that both halves depend on every char
+		h ^= h >>> 33;
+		h *= 0xff51afd7ed558ccdL;
+		h ^= h >>> 33;
+		return h;
+	}
+
+	/**
+	 * @return the serialized filter
+	 */
+	public byte[] toByteArray() {
+		ByteArrayOutputStream buf = new ByteArrayOutputStream(MAGIC.length + 8 + words.length * 8);
+		try {
+			DataOutputStream out = new DataOutputStream(buf);
+			out.write(MAGIC);
+			out.writeInt(hashes);
+			out.writeInt(bits);
+			for (long w : words)
+				out.writeLong(w);
+			out.flush();
+		} catch (IOException e) {
+			// cannot happen writing to memory
+			throw new IllegalStateException(e);
+		}
+		return buf.toByteArray();
+	}
+
+	/**
+	 * Reads a filter serialized by {@link #toByteArray()}.
+	 *
+	 * @param in stream positioned at the filter
+	 * @return the filter
+	 * @throws IOException if the stream does not hold a filter
+	 */
+	public static BloomFilter readFrom(InputStream in) throws IOException {
+		DataInputStream data = new DataInputStream(in);
+		byte[] magic = new byte[MAGIC.length];
+		data.readFully(magic);
+		if (!Arrays.equals(magic, MAGIC))
+			throw new IOException("Not a log4j-s3 Bloom filter");
+		int hashes = data.readInt();
+		int bits = data.readInt();
+		if (hashes <= 0 || bits <= 0 || bits > MAX_BITS)
+			throw new IOException("Corrupt Bloom filter header");
+		long[] words = new long[(bits + 63) >>> 6];
+		for (int i = 0; i < words.length; i++)
+			words[i] = data.readLong();
+		return new BloomFilter(hashes, bits, words);
+	}
+}
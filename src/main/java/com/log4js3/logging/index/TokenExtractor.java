@@ -0,0 +1,93 @@
+package com.log4js3.logging.index;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.Reader;
+import java.io.StringReader;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Extracts the tokens to index from the text of a batch.  Tokens are the
+ * matches of the configured patterns (their first group, if they have
+ * one), and the values of the configured MDC keys as rendered by the JSON
+ * lines encoding.  Patterns are matched within a line, so that a batch can
+ * be scanned line by line without holding all of its text.
+ *
+ */
+public class TokenExtractor {
+	private final List<Pattern> patterns = new ArrayList<Pattern>();
+
+	/**
+	 * Adds a pattern whose matches (or first group) are tokens.
+	 *
+	 * @param regex the pattern, e.g. "req-[0-9a-f]{8}" or "user=(\\w+)"
+	 */
+	public void addPattern(String regex) {
+		patterns.add(Pattern.compile(regex));
+	}
+
+	/**
+	 * Adds an MDC key whose values are tokens.  Only events rendered as JSON
+	 * lines carry their MDC keys in the text.
+	 *
+	 * @param key the MDC key
+	 */
+	public void addMdcKey(String key) {
+		patterns.add(Pattern.compile("\"" + Pattern.quote(key) + "\":\"((?:[^\"\\\\]|\\\\.)*)\""));
+	}
+
+	/**
+	 * @return true if no tokens are configured
+	 */
+	public boolean isEmpty() {
+		return patterns.isEmpty();
+	}
+
+	/**
+	 * Collects the distinct tokens found in the text.
+	 *
+	 * @param text the text of a batch
+	 * @return the tokens
+	 */
+	public Set<String> extract(CharSequence text) {
+		Set<String> tokens = new HashSet<String>();
+		try {
+			extract(new StringReader(text.toString()), tokens);
+		} catch (IOException e) {
+			// cannot happen reading from memory
+			throw new IllegalStateException(e);
+		}
+		return tokens;
+	}
+
+	/**
+	 * Collects the distinct tokens found in the text read, one line at a
+	 * time.
+	 *
+	 * @param in the text of a batch
+	 * @param tokens set to add the tokens to
+	 * @throws IOException if reading fails
+	 */
+	public void extract(Reader in, Set<String> tokens) throws IOException {
+		Matcher[] matchers = new Matcher[patterns.size()];
+		for (int i = 0; i < matchers.length; i++)
+			matchers[i] = patterns.get(i).matcher("");
+		BufferedReader lines = new BufferedReader(in);
+		for (String line; null != (line = lines.readLine());) {
+			for (Matcher m : matchers) {
+				m.reset(line);
+				int group = m.groupCount() > 0 ? 1 : 0;
+				while (m.find()) {
+					String token = m.group(group);
+					if (null != token && !token.isEmpty())
+						tokens.add(token);
+				}
+			}
+		}
+	}
+}
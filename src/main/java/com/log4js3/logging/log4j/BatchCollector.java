@@ -0,0 +1,94 @@
+package com.log4js3.logging.log4j;
+
+import java.io.IOException;
+import java.util.concurrent.CompletableFuture;
+
+import com.log4js3.logging.ByteChunks;
+import com.log4js3.logging.EncodedBatch;
+import com.log4js3.logging.PublishContext;
+
+/**
+ * Collects the logs published for a batch between start and end.  Logs
+ * staged off-heap are kept as chunks as long as they are all there is, so
+ * that they can be encoded without a heap copy; anything published after
+ * them turns the batch into text.  Not thread-safe.
+ *
+ */
+public class BatchCollector {
+	private StringBuilder text = new StringBuilder();
+	private ByteChunks chunks;
+
+	/**
+	 * A collected batch: the chunks, if any, followed by the text.
+	 */
+	public static class Collected {
+		public final ByteChunks chunks;
+		public final String text;
+
+		Collected(ByteChunks chunks, String text) {
+			this.chunks = chunks;
+			this.text = text;
+		}
+
+		/**
+		 * Encodes the batch as configured in the context.
+		 *
+		 * @param context the context of the batch
+		 * @return the encoded batch
+		 * @throws IOException if compression fails
+		 */
+		public EncodedBatch encode(PublishContext context) throws IOException {
+			return EncodedBatch.encode(context, text, chunks);
+		}
+
+		/**
+		 * Publishes the batch through start/publish/end of a helper.
+		 *
+		 * @param helper the helper
+		 * @param context the context of the batch
+		 * @return a future completed once the helper stored the batch
+		 */
+		public CompletableFuture<Void> publishTo(IPublishHelper helper, PublishContext context) {
+			helper.start(context);
+			if (null != chunks)
+				helper.publish(context, chunks);
+			if (!text.isEmpty() || null == chunks)
+				helper.publish(context, text);
+			return helper.endAsync(context);
+		}
+	}
+
+	/**
+	 * Discards what was collected and starts a new batch.
+	 */
+	public void reset() {
+		text = new StringBuilder();
+		chunks = null;
+	}
+
+	public void append(String log) {
+		if (null != chunks) {
+			text.append(chunks.toString());
+			chunks = null;
+		}
+		text.append(log);
+	}
+
+	public void append(ByteChunks logs) {
+		if (null == chunks && text.length() == 0)
+			chunks = logs;
+		else
+			append(logs.toString());
+	}
+
+	/**
+	 * Takes the collected batch and starts a new one.
+	 *
+	 * @return the batch
+	 */
+	public Collected take() {
+		Collected res = new Collected(chunks, text.toString());
+		reset();
+		return res;
+	}
+}
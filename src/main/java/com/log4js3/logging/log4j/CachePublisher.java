@@ -1,42 +1,287 @@
 package com.log4js3.logging.log4j;
 
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.StringReader;
+import java.io.UnsupportedEncodingException;
+import java.net.URLDecoder;
+import java.net.URLEncoder;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
 import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
 import java.util.Date;
+import java.util.HashSet;
 import java.util.LinkedList;
 import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Supplier;
 
+import com.log4js3.logging.ByteChunks;
+import com.log4js3.logging.DeamonThreadFactory;
+import com.log4js3.logging.EncodedBatch;
+import com.log4js3.logging.LoggingEventCache;
 import com.log4js3.logging.LoggingEventCache.ICachePublisher;
 import com.log4js3.logging.PublishContext;
+import com.log4js3.logging.SpillFiles;
+import com.log4js3.logging.index.BloomFilter;
+import com.log4js3.logging.index.TokenExtractor;
 
 /**
  * Implementation to standardize on a cache name and aggregate and coordinate
  * multiple IPublishHelpers to publish content to different destinations.
+ * <br>
+ * Every helper is a destination with its own bounded queue, workers and
+ * failure accounting, so that a broken destination does not fail the
+ * others.  A copy that a destination cannot store, because it failed or
+ * its queue is full, is spilled for that destination only (see
+ * {@link #setSpillDir(File)}), so publishing never waits for a slow
+ * destination and the others do not get the batch twice.
+ * <br>
+ * A batch is encoded and compressed once and the bytes are shared by all
+ * {@link IEncodedPublishHelper}s; plain IPublishHelpers get the text through
+ * start/publish/end on a single worker.
  *
  * @author Van Ly (vancly@hotmail.com)
  *
  */
 public class CachePublisher implements ICachePublisher {
+	static final String STAMP_FORMAT = "yyyy/MM/dd/yyyyMMdd-HHmmss_";
+	public static final int DEFAULT_CONCURRENCY = 1;
+	public static final int DEFAULT_QUEUE_SIZE = 16;
+	public static final String INDEX_SUFFIX = ".bloom";
+	public static final double DEFAULT_FALSE_POSITIVE_RATE = 0.01;
+	static final String SPILL_GZIP = "gz";
+	static final String SPILL_RAW = "raw";
+
+	/**
+	 * A helper together with its own queue and workers.  A copy the
+	 * destination cannot store is spilled to its own directory, if set, so
+	 * that it is published again to this destination only.
+	 */
+	static class Destination {
+		final String name;
+		final IPublishHelper helper;
+		final ThreadPoolExecutor executor;
+		final Map<String, CompletableFuture<Void>> lastByKey =
+			new ConcurrentHashMap<String, CompletableFuture<Void>>();
+		final Set<CompletableFuture<Void>> outstanding =
+			Collections.newSetFromMap(new ConcurrentHashMap<CompletableFuture<Void>, Boolean>());
+		// Files spilled by this instance by key, which a later copy replaces
+		final Map<String, File> spilled = new ConcurrentHashMap<String, File>();
+		final AtomicLong failures = new AtomicLong();
+		// One per queued operation, given back once the operation is handed
+		// to the helper; they bound the queue, not the stores in flight
+		final Semaphore slots;
+		volatile File spillDir;
+
+		Destination(String name, IPublishHelper helper, int concurrency, int queueSize) {
+			this.name = name;
+			this.helper = helper;
+			// Plain helpers accumulate a batch across calls, so one worker only
+			int workers = helper instanceof IEncodedPublishHelper ? concurrency : 1;
+			this.executor = new ThreadPoolExecutor(workers, workers, 0, TimeUnit.SECONDS,
+				new LinkedBlockingQueue<Runnable>(), new DeamonThreadFactory());
+			this.slots = new Semaphore(workers + queueSize);
+		}
+
+		/**
+		 * Queues a store operation.  Operations on the same key run in order,
+		 * so a republished object is never overwritten by an older version.
+		 * When the queue is full the operation fails, unless the caller
+		 * waits for room; a failed operation is spilled if a spill directory
+		 * is set.
+		 *
+		 * @param context the context of the batch
+		 * @param collected the batch, to spill if it cannot be stored
+		 * @param task starts storing the batch
+		 * @param wait true to wait for room in the queue
+		 * @return a future completed once the batch is stored or spilled
+		 */
+		CompletableFuture<Void> submit(final PublishContext context, final BatchCollector.Collected collected,
+				final Supplier<CompletableFuture<Void>> task, boolean wait) {
+			final String key = context.cacheName;
+			final CompletableFuture<Void> res = new CompletableFuture<Void>();
+			boolean acquired = true;
+			if (wait) {
+				try {
+					slots.acquire();
+				} catch (InterruptedException e) {
+					Thread.currentThread().interrupt();
+					acquired = false;
+				}
+			} else {
+				acquired = slots.tryAcquire();
+			}
+			final boolean queued = acquired;
+			final Runnable enqueue = new Runnable() {
+				public void run() {
+					if (!queued) {
+						res.completeExceptionally(new RejectedExecutionException("Queue full"));
+						return;
+					}
+					try {
+						executor.execute(new Runnable() {
+							public void run() {
+								Thread.currentThread().setName(LoggingEventCache.PUBLISH_THREAD_NAME);
+								try {
+									task.get().whenComplete((v, t) -> {
+										if (null == t) res.complete(null); else res.completeExceptionally(t);
+									});
+								} catch (RuntimeException e) {
+									res.completeExceptionally(e);
+								} finally {
+									slots.release();
+								}
+							}
+						});
+					} catch (RejectedExecutionException e) {
+						slots.release();
+						res.completeExceptionally(e);
+					}
+				}
+			};
+			final CompletableFuture<Void> handled = new CompletableFuture<Void>();
+			outstanding.add(res);
+			CompletableFuture<Void> previous = lastByKey.put(key, handled);
+			if (null == previous)
+				enqueue.run();
+			else
+				previous.whenComplete((v, t) -> enqueue.run());
+			res.whenComplete((v, t) -> {
+				outstanding.remove(res);
+				try {
+					if (null == t) {
+						// A newer copy is stored, the spilled one is stale
+						File stale = spilled.remove(key);
+						if (null != stale)
+							stale.delete();
+						handled.complete(null);
+						return;
+					}
+					failures.incrementAndGet();
+					System.out.println(String.format("Publishing %s to %s failed: %s",
+						key, helper.getClass().getName(), t));
+					if (null == spillDir) {
+						handled.completeExceptionally(t);
+						return;
+					}
+					try {
+						File f = spillFile(context);
+						SpillFiles.write(f, collected.chunks, collected.text);
+						File stale = spilled.put(key, f);
+						if (null != stale && !stale.equals(f))
+							stale.delete();
+						handled.complete(null);
+					} catch (IOException e) {
+						System.out.println(String.format("Cannot spill %s for %s: %s", key, name, e));
+						handled.completeExceptionally(t);
+					}
+				} finally {
+					lastByKey.remove(key, handled);
+				}
+			});
+			return handled;
+		}
+
+		/**
+		 * Names the spill file of a batch after everything needed to store
+		 * it again.
+		 */
+		File spillFile(PublishContext context) {
+			try {
+				return new File(spillDir, String.format("%d_%s_%s_%s%s", context.timeStamp,
+					context.gzip ? SPILL_GZIP : SPILL_RAW, context.encoding,
+					URLEncoder.encode(context.cacheName, "UTF-8"), SpillFiles.SPILL_SUFFIX));
+			} catch (UnsupportedEncodingException e) {
+				throw new IllegalStateException(e);
+			}
+		}
+
+		/**
+		 * Stops accepting operations and waits for the queued and running
+		 * ones until the deadline.  Operations not done by then are failed,
+		 * and so spilled if a spill directory is set.
+		 */
+		void shutdown(long deadline) {
+			executor.shutdown();
+			try {
+				executor.awaitTermination(Math.max(0, deadline - System.nanoTime()), TimeUnit.NANOSECONDS);
+				// Stores handed to the helper may still be in flight
+				CompletableFuture.allOf(outstanding.toArray(new CompletableFuture[0])).handle((v, t) -> null)
+					.get(Math.max(0, deadline - System.nanoTime()), TimeUnit.NANOSECONDS);
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+			} catch (ExecutionException | TimeoutException e) {
+				// failed below
+			}
+			executor.shutdownNow();
+			for (CompletableFuture<Void> f: outstanding.toArray(new CompletableFuture[0]))
+				f.completeExceptionally(new RejectedExecutionException("Destination closed"));
+		}
+	}
+
 	private final String hostName;
 	private final String[] tags;
 	private final boolean gzip;
+	private final String encoding;
+	private final String nameInfix;
+
+	// Publishing happens on a single thread, but guard the formatter anyway
+	private final SimpleDateFormat stampFormat = new SimpleDateFormat(STAMP_FORMAT);
+	private long formattedSecond = Long.MIN_VALUE;
+	private String formattedPrefix;
+
+	private List<Destination> destinations = new LinkedList<Destination>();
+	private boolean anyEncoded = false;
+	private TokenExtractor tokenExtractor;
+	private double falsePositiveRate = DEFAULT_FALSE_POSITIVE_RATE;
 
-	private List<IPublishHelper> helpers = new LinkedList<IPublishHelper>();
+	// The batch being published, collected on the publish thread
+	private final BatchCollector collector = new BatchCollector();
 
 	public CachePublisher(String hostName, String[] tags, boolean gzip) {
+		this(hostName, tags, gzip, PublishContext.ENCODING_TEXT);
+	}
+
+	public CachePublisher(String hostName, String[] tags, boolean gzip, String encoding) {
 		this.hostName = hostName;
 		this.tags = tags;
 		this.gzip = gzip;
+		this.encoding = encoding;
+		String infix = "";
+		if(tags!=null) infix += toStr(tags) + "_";
+		if(hostName!=null) infix += hostName + "_";
+		this.nameInfix = infix;
 	}
 
 	public PublishContext createContext(final String cacheName) {
-		String namespacedCacheName = composeNamespacedCacheName(cacheName);
+		return createContext(cacheName, System.currentTimeMillis());
+	}
+
+	public PublishContext createContext(final String cacheName, long timeStamp) {
+		String namespacedCacheName = composeNamespacedCacheName(cacheName, timeStamp);
 //		System.out.println(String.format("BEGIN publishing to %s...", namespacedCacheName));
-		return new PublishContext(namespacedCacheName, hostName, tags, gzip);
+		return new PublishContext(namespacedCacheName, hostName, tags, gzip, encoding, timeStamp);
 	}
 
 	public void startPublish(PublishContext context) {
-		for (IPublishHelper helper: helpers)
-			helper.start(context);
+		collector.reset();
 	}
 
 	static String toStr(String [] ss) {
@@ -49,23 +294,234 @@ public class CachePublisher implements ICachePublisher {
 	}
 
 	String composeNamespacedCacheName(String rawCacheName) {
-		String s = new SimpleDateFormat("yyyy/MM/dd/yyyyMMdd-HHmmss_").format(new Date());
-		if(tags!=null) s += toStr(tags) + "_";
-		if(hostName!=null) s += hostName + "_";
+		return composeNamespacedCacheName(rawCacheName, System.currentTimeMillis());
+	}
+
+	String composeNamespacedCacheName(String rawCacheName, long timeStamp) {
+		String s = formatStamp(timeStamp) + nameInfix;
 		s += rawCacheName + ".log";
+		if(PublishContext.ENCODING_TEMPLATE.equals(encoding)) s += "t";
 		if(gzip) s += ".gz";
 		return s;
 	}
 
+	/**
+	 * Formats the date prefix of a key.  Rollover windows stamp all their
+	 * objects with the window start, so the last result (at the second
+	 * resolution of the format) is cached.
+	 */
+	synchronized String formatStamp(long timeStamp) {
+		long second = Math.floorDiv(timeStamp, 1000L);
+		if (second != formattedSecond) {
+			formattedPrefix = stampFormat.format(new Date(timeStamp));
+			formattedSecond = second;
+		}
+		return formattedPrefix;
+	}
+
 	public void publish(PublishContext context, String log) {
-		for (IPublishHelper helper: helpers)
-			helper.publish(context, log);
+		collector.append(log);
+	}
+
+	public void publish(PublishContext context, ByteChunks logs) {
+		collector.append(logs);
 	}
 
 	public void endPublish(PublishContext context) {
-		for (IPublishHelper helper: helpers)
-			helper.end(context);
+		endPublishAsync(context);
+	}
+
+	public CompletableFuture<Void> endPublishAsync(final PublishContext context) {
+		final BatchCollector.Collected collected = collector.take();
+		EncodedBatch encoded = null;
+		if (anyEncoded) {
+			try {
+				encoded = collected.encode(context);
+			} catch (IOException e) {
+				e.printStackTrace();
+				CompletableFuture<Void> f = new CompletableFuture<Void>();
+				f.completeExceptionally(e);
+				return f;
+			}
+		}
+		final EncodedBatch batch = encoded;
+		final EncodedBatch index = anyEncoded ? buildIndex(collected.text, collected.chunks) : null;
+		CompletableFuture<?>[] ends = new CompletableFuture<?>[destinations.size()];
+		int i = 0;
+		for (final Destination d: destinations) {
+			ends[i++] = d.submit(context, collected, new Supplier<CompletableFuture<Void>>() {
+				public CompletableFuture<Void> get() {
+					return store(d, context, collected, batch, index);
+				}
+			}, false);
+		}
 		System.out.println(String.format("END publishing to %s", context.cacheName));
+		return CompletableFuture.allOf(ends);
+	}
+
+	/**
+	 * Starts storing a batch to a destination.
+	 *
+	 * @param batch the encoded batch, for IEncodedPublishHelpers
+	 * @param index its Bloom filter, or null
+	 */
+	private CompletableFuture<Void> store(Destination d, PublishContext context,
+			BatchCollector.Collected collected, final EncodedBatch batch, EncodedBatch index) {
+		if (!(d.helper instanceof IEncodedPublishHelper))
+			return collected.publishTo(d.helper, context);
+		final IEncodedPublishHelper helper = (IEncodedPublishHelper) d.helper;
+		if (null == index)
+			return helper.publish(context, batch);
+		final PublishContext indexContext = new PublishContext(context.cacheName + INDEX_SUFFIX,
+			context.hostName, context.tags, false, PublishContext.ENCODING_TEXT, context.timeStamp);
+		// A republished object grows, and so does its filter.  The filter
+		// goes first, so an object is never next to an older, smaller
+		// filter, and a failed filter fails the batch
+		return helper.publish(indexContext, index).thenCompose(v -> helper.publish(context, batch));
+	}
+
+	/**
+	 * Builds the Bloom filter over the tokens of a batch, if configured.
+	 * Off-heap chunks are scanned line by line, without copying them to
+	 * the heap.
+	 *
+	 * @return the serialized filter, or null
+	 */
+	EncodedBatch buildIndex(String text, ByteChunks chunks) {
+		if (null == tokenExtractor || tokenExtractor.isEmpty())
+			return null;
+		Set<String> tokens = new HashSet<String>();
+		try {
+			if (null != chunks)
+				tokenExtractor.extract(new InputStreamReader(chunks.newInputStream(), StandardCharsets.UTF_8), tokens);
+			if (null != text)
+				tokenExtractor.extract(new StringReader(text), tokens);
+		} catch (IOException e) {
+			// cannot happen reading from memory
+			throw new IllegalStateException(e);
+		}
+		BloomFilter filter = new BloomFilter(tokens.size(), falsePositiveRate);
+		for (String token : tokens)
+			filter.put(token);
+		return new EncodedBatch(filter.toByteArray(), EncodedBatch.CONTENT_TYPE_BINARY, null);
+	}
+
+	/**
+	 * Store a Bloom filter over the tokens of each batch next to it, under
+	 * the name of the batch with {@link #INDEX_SUFFIX} appended.  Only
+	 * IEncodedPublishHelpers store filters.  A filter is stored before its
+	 * batch, and the batch fails if its filter does, so that a stored object
+	 * is never next to a filter missing some of its tokens.
+	 *
+	 * @param tokenExtractor extracts the tokens from the text of a batch
+	 * @param falsePositiveRate target false positive rate of the filters
+	 */
+	public void setTokenIndex(TokenExtractor tokenExtractor, double falsePositiveRate) {
+		this.tokenExtractor = tokenExtractor;
+		this.falsePositiveRate = falsePositiveRate;
+	}
+
+	/**
+	 * Spill the copies of batches that a destination cannot store, because
+	 * it failed or its queue was full, to a subdirectory per destination.
+	 * Without one such copies fail their batch.
+	 *
+	 * @param spillDir the spill directory, or null to fail such batches
+	 */
+	public void setSpillDir(File spillDir) {
+		for (Destination d: destinations)
+			d.spillDir = null == spillDir ? null : new File(spillDir, d.name);
+	}
+
+	/**
+	 * Publishes the copies spilled by an earlier instance again, each to
+	 * the destination it was spilled for, then deletes their files.  Files
+	 * are claimed like the batches spilled by the cache, and given back if
+	 * they can be neither stored nor spilled again.  Destinations are told
+	 * apart by the order and class of their helpers, so the helpers should
+	 * be added in the same order on every start.
+	 *
+	 * @param spillDir the spill directory
+	 * @return the number of copies replayed
+	 */
+	public int replaySpill(File spillDir) {
+		String owner = UUID.randomUUID().toString().replace("-", "");
+		int replayed = 0;
+		for (final Destination d: destinations) {
+			File[] files = new File(spillDir, d.name).listFiles();
+			if (null == files) continue;
+			Arrays.sort(files);
+			List<File> claimedFiles = new ArrayList<File>();
+			List<File> names = new ArrayList<File>();
+			List<CompletableFuture<Void>> ends = new ArrayList<CompletableFuture<Void>>();
+			for (File f : files) {
+				String name = f.getName();
+				if (!name.endsWith(SpillFiles.SPILL_SUFFIX)) continue;
+				File claimed = SpillFiles.claim(f, owner);
+				if (null == claimed) continue;//replayed by someone else
+				CompletableFuture<Void> end;
+				try {
+					String[] parts = name.substring(0, name.length() - SpillFiles.SPILL_SUFFIX.length()).split("_", 4);
+					final PublishContext context = new PublishContext(URLDecoder.decode(parts[3], "UTF-8"),
+						hostName, tags, SPILL_GZIP.equals(parts[1]), parts[2], Long.parseLong(parts[0]));
+					final BatchCollector.Collected collected = new BatchCollector.Collected(null,
+						new String(Files.readAllBytes(claimed.toPath()), StandardCharsets.UTF_8));
+					final boolean encode = d.helper instanceof IEncodedPublishHelper;
+					final EncodedBatch batch = encode ? collected.encode(context) : null;
+					final EncodedBatch index = encode ? buildIndex(collected.text, null) : null;
+					end = d.submit(context, collected, new Supplier<CompletableFuture<Void>>() {
+						public CompletableFuture<Void> get() {
+							return store(d, context, collected, batch, index);
+						}
+					}, true);
+				} catch (IOException | RuntimeException e) {
+					end = new CompletableFuture<Void>();
+					end.completeExceptionally(e);
+				}
+				claimedFiles.add(claimed);
+				names.add(f);
+				ends.add(end);
+			}
+			for (int i = 0; i < ends.size(); i++) {
+				boolean ok;
+				try {
+					ends.get(i).get();
+					ok = true;
+				} catch (InterruptedException e) {
+					Thread.currentThread().interrupt();
+					ok = false;
+				} catch (ExecutionException e) {
+					System.out.println("Cannot replay spill file " + names.get(i) + ": " + e.getCause());
+					ok = false;
+				}
+				SpillFiles.release(claimedFiles.get(i), names.get(i), ok);
+				if (ok) replayed++;
+			}
+		}
+		return replayed;
+	}
+
+	public void close(long timeout, TimeUnit unit) {
+		long deadline = System.nanoTime() + unit.toNanos(timeout);
+		for (Destination d: destinations)
+			d.executor.shutdown();
+		for (Destination d: destinations) {
+			d.shutdown(deadline);
+			d.helper.close(Math.max(0, deadline - System.nanoTime()), TimeUnit.NANOSECONDS);
+		}
+	}
+
+	/**
+	 * Retrieves the number of failed store operations per destination.
+	 *
+	 * @return failures in the order the helpers were added
+	 */
+	public long[] getFailureCounts() {
+		long[] res = new long[destinations.size()];
+		int i = 0;
+		for (Destination d: destinations)
+			res[i++] = d.failures.get();
+		return res;
 	}
 
 	/**
@@ -75,6 +531,22 @@ public class CachePublisher implements ICachePublisher {
 	 * @param helper helper to add to the list
 	 */
 	public void addHelper(IPublishHelper helper) {
-		helpers.add(helper);
+		addHelper(helper, DEFAULT_CONCURRENCY, DEFAULT_QUEUE_SIZE);
+	}
+
+	/**
+	 * Add an IPublishHelper implementation as a destination with its own
+	 * queue and workers.
+	 *
+	 * @param helper helper to add to the list
+	 * @param concurrency number of batches stored at once (only
+	 * 	IEncodedPublishHelpers use more than one)
+	 * @param queueSize number of batches that may wait for the destination;
+	 * 	past it, further copies are spilled or fail
+	 */
+	public void addHelper(IPublishHelper helper, int concurrency, int queueSize) {
+		String name = String.format("%d-%s", destinations.size(), helper.getClass().getSimpleName());
+		destinations.add(new Destination(name, helper, concurrency, queueSize));
+		anyEncoded |= helper instanceof IEncodedPublishHelper;
 	}
 }
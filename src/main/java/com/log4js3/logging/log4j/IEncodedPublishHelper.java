@@ -0,0 +1,27 @@
+package com.log4js3.logging.log4j;
+
+import java.util.concurrent.CompletableFuture;
+
+import com.log4js3.logging.EncodedBatch;
+import com.log4js3.logging.PublishContext;
+
+/**
+ * Publish helper that stores batches already encoded and compressed by the
+ * {@link CachePublisher}, so that several destinations share the work of
+ * encoding a batch.  The publisher calls {@link #publish(PublishContext, EncodedBatch)}
+ * instead of start/publish/end for such helpers, possibly from several
+ * threads at once.
+ *
+ */
+public interface IEncodedPublishHelper extends IPublishHelper {
+	/**
+	 * Stores an encoded batch.
+	 *
+	 * @param context publish context providing useful properties for the
+	 * publish operation
+	 * @param batch the encoded batch; its bytes are shared and must not be
+	 * modified
+	 * @return a future completed once the batch is stored
+	 */
+	CompletableFuture<Void> publish(PublishContext context, EncodedBatch batch);
+}
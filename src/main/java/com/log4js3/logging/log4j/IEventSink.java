@@ -0,0 +1,17 @@
+package com.log4js3.logging.log4j;
+
+import org.apache.log4j.spi.LoggingEvent;
+
+/**
+ * Receiver for events produced by an ingest stage of the appender, such as
+ * summaries of collapsed repeats or of dropped events.
+ *
+ */
+public interface IEventSink {
+	/**
+	 * An event should be staged for publishing.
+	 *
+	 * @param event the event to stage
+	 */
+	void emit(LoggingEvent event);
+}
@@ -1,5 +1,9 @@
 package com.log4js3.logging.log4j;
 
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+
+import com.log4js3.logging.ByteChunks;
 import com.log4js3.logging.PublishContext;
 
 /**
@@ -29,6 +33,20 @@ public interface IPublishHelper {
 	 */
 	void publish(PublishContext context, String log);
 
+	/**
+	 * Log events staged off-heap should be published.  The bytes are only
+	 * valid until {@link #end(PublishContext)} returns, so implementations
+	 * must consume them by then.  By default they are decoded and passed to
+	 * {@link #publish(PublishContext, String)}.
+	 *
+	 * @param context publish context providing useful properties for the
+	 * publish operation
+	 * @param logs the UTF-8 encoded logs to publish
+	 */
+	default void publish(PublishContext context, ByteChunks logs) {
+		publish(context, logs.toString());
+	}
+
 	/**
 	 * A publish batch has ended.  Implementations should conclude a batch
 	 * and clean up resources here.
@@ -37,4 +55,27 @@ public interface IPublishHelper {
 	 * publish operation
 	 */
 	void end(PublishContext context);
+
+	/**
+	 * A publish batch has ended, like {@link #end(PublishContext)}, for
+	 * implementations that complete the batch asynchronously.
+	 *
+	 * @param context publish context providing useful properties for the
+	 * publish operation
+	 * @return a future completed once the batch is stored
+	 */
+	default CompletableFuture<Void> endAsync(PublishContext context) {
+		end(context);
+		return CompletableFuture.completedFuture(null);
+	}
+
+	/**
+	 * No more batches will be published.  Implementations that complete
+	 * batches asynchronously should wait for them here, up to the timeout.
+	 *
+	 * @param timeout maximum time to wait
+	 * @param unit unit of the timeout
+	 */
+	default void close(long timeout, TimeUnit unit) {
+	}
 }
@@ -0,0 +1,142 @@
+package com.log4js3.logging.log4j;
+
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.log4j.Level;
+import org.apache.log4j.Logger;
+import org.apache.log4j.spi.LoggingEvent;
+
+import com.log4js3.logging.StripedLruCache;
+
+/**
+ * Ingest stage that rate limits events with a token bucket per logger (or per
+ * level).  Every event that does not get a token is dropped and counted
+ * exactly; the count is reported as a single event the next time the bucket
+ * lets an event through, when the bucket is evicted from the bounded cache,
+ * or when the appender is closed.
+ *
+ */
+public class RateLimitSampler {
+	public static final String KEY_LOGGER = "logger";
+	public static final String KEY_LEVEL = "level";
+
+	static class Bucket {
+		final String key;
+		final String loggerName;
+		final Level level;
+		double tokens;
+		long refilledAt;
+		long dropped;
+
+		Bucket(String key, LoggingEvent e, double tokens, long now) {
+			this.key = key;
+			this.loggerName = e.getLoggerName();
+			this.level = e.getLevel();
+			this.tokens = tokens;
+			this.refilledAt = now;
+		}
+	}
+
+	private final StripedLruCache<Bucket> buckets;
+	private final double ratePerNano;
+	private final double burst;
+	private final boolean byLevel;
+	private final AtomicLong totalDropped = new AtomicLong();
+
+	/**
+	 * @param stripes number of lock stripes for the bucket cache
+	 * @param maxBuckets maximum number of buckets tracked at once
+	 * @param ratePerSecond sustained number of events let through per second
+	 * 	and bucket
+	 * @param burst number of events that may be let through at once
+	 * @param keyBy {@link #KEY_LOGGER} or {@link #KEY_LEVEL}
+	 */
+	public RateLimitSampler(int stripes, int maxBuckets, double ratePerSecond,
+			double burst, String keyBy) {
+		if (ratePerSecond <= 0)
+			throw new IllegalArgumentException("ratePerSecond must be positive");
+		this.buckets = new StripedLruCache<Bucket>(stripes, maxBuckets);
+		this.ratePerNano = ratePerSecond / TimeUnit.SECONDS.toNanos(1);
+		this.burst = Math.max(1, burst);
+		if (!KEY_LEVEL.equalsIgnoreCase(keyBy) && !KEY_LOGGER.equalsIgnoreCase(keyBy))
+			throw new IllegalArgumentException("Unknown sampling key: " + keyBy);
+		this.byLevel = KEY_LEVEL.equalsIgnoreCase(keyBy);
+	}
+
+	/**
+	 * Offers an event to the sampler.
+	 *
+	 * @param e the incoming event
+	 * @param sink receiver for events reporting earlier drops
+	 * @return true if the event should be staged, false if it was dropped
+	 */
+	public boolean offer(LoggingEvent e, IEventSink sink) {
+		String key = byLevel ? String.valueOf(e.getLevel()) : e.getLoggerName();
+		long now = System.nanoTime();
+		StripedLruCache.Stripe<Bucket> stripe = buckets.stripe(key);
+		LoggingEvent report = null;
+		List<Bucket> evicted;
+		boolean pass;
+		synchronized (stripe) {
+			Bucket b = stripe.get(key);
+			if (b == null) {
+				b = new Bucket(key, e, burst, now);
+				stripe.put(key, b);
+			} else {
+				b.tokens = Math.min(burst, b.tokens + (now - b.refilledAt) * ratePerNano);
+				b.refilledAt = now;
+			}
+			pass = b.tokens >= 1;
+			if (pass) {
+				b.tokens -= 1;
+				report = report(b, e.timeStamp);
+			} else {
+				b.dropped++;
+			}
+			evicted = stripe.drainEvicted();
+		}
+		if (!pass)
+			totalDropped.incrementAndGet();
+		if (evicted != null)
+			reportAll(evicted, sink);
+		if (report != null)
+			sink.emit(report);
+		return pass;
+	}
+
+	/**
+	 * Reports drops for all buckets and forgets them.
+	 *
+	 * @param sink receiver for the report events
+	 */
+	public void flush(IEventSink sink) {
+		reportAll(buckets.clear(), sink);
+	}
+
+	/**
+	 * @return the number of events dropped since this sampler was created
+	 */
+	public long getTotalDropped() {
+		return totalDropped.get();
+	}
+
+	private void reportAll(List<Bucket> ended, IEventSink sink) {
+		long now = System.currentTimeMillis();
+		for (Bucket b : ended) {
+			LoggingEvent report = report(b, now);
+			if (report != null)
+				sink.emit(report);
+		}
+	}
+
+	private LoggingEvent report(Bucket b, long timeStamp) {
+		if (b.dropped == 0) return null;
+		String msg = String.format("Sampling dropped %d events for %s %s",
+			b.dropped, byLevel ? KEY_LEVEL : KEY_LOGGER, b.key);
+		b.dropped = 0;
+		return new LoggingEvent(RateLimitSampler.class.getName(),
+			Logger.getLogger(b.loggerName), timeStamp, b.level, msg, null);
+	}
+}
@@ -0,0 +1,181 @@
+package com.log4js3.logging.log4j;
+
+import java.util.Date;
+import java.util.List;
+import java.util.function.Predicate;
+
+import org.apache.log4j.Level;
+import org.apache.log4j.Logger;
+import org.apache.log4j.spi.LoggingEvent;
+import org.apache.log4j.spi.ThrowableInformation;
+
+import com.log4js3.logging.StripedLruCache;
+
+/**
+ * Ingest stage that collapses consecutive repeats of the same message from a
+ * logger.  The first occurrence is let through; subsequent identical or
+ * near-identical events (same level, same message once digits and hex
+ * runs are masked, same leading stack frames) are only counted.  When the
+ * run is broken, exceeds the collapse window (checked on the next event of
+ * the logger or by {@link #flushExpired(long, IEventSink)}), is evicted from
+ * the bounded fingerprint cache or the appender is closed, a single summary
+ * event with the repeat count and first/last timestamps is emitted instead.
+ *
+ */
+public class RepeatCollapser {
+	static final int STACK_FRAMES_FINGERPRINTED = 3;
+
+	private static final long FNV_OFFSET = 0xcbf29ce484222325L;
+	private static final long FNV_PRIME = 0x100000001b3L;
+
+	static class Run {
+		final String loggerName;
+		long fingerprint;
+		Level level;
+		long first;
+		long last;
+		int repeats;
+
+		Run(String loggerName) {
+			this.loggerName = loggerName;
+		}
+	}
+
+	private final StripedLruCache<Run> runs;
+	private final long windowMillis;
+
+	/**
+	 * @param stripes number of lock stripes for the fingerprint cache
+	 * @param maxLoggers maximum number of loggers tracked at once
+	 * @param windowMillis maximum time span a single collapsed run may cover
+	 */
+	public RepeatCollapser(int stripes, int maxLoggers, long windowMillis) {
+		this.runs = new StripedLruCache<Run>(stripes, maxLoggers);
+		this.windowMillis = windowMillis;
+	}
+
+	/**
+	 * Offers an event to the collapser.
+	 *
+	 * @param e the incoming event
+	 * @param sink receiver for summary events of runs that ended
+	 * @return true if the event should be staged, false if it was collapsed
+	 */
+	public boolean offer(LoggingEvent e, IEventSink sink) {
+		String key = e.getLoggerName();
+		long fp = fingerprint(e);
+		StripedLruCache.Stripe<Run> stripe = runs.stripe(key);
+		LoggingEvent summary = null;
+		List<Run> evicted;
+		boolean pass;
+		synchronized (stripe) {
+			Run run = stripe.get(key);
+			if (run != null && run.fingerprint == fp
+					&& e.timeStamp - run.first < windowMillis) {
+				run.repeats++;
+				run.last = e.timeStamp;
+				pass = false;
+			} else {
+				if (run == null) {
+					run = new Run(key);
+					stripe.put(key, run);
+				} else {
+					summary = summarize(run);
+				}
+				run.fingerprint = fp;
+				run.level = e.getLevel();
+				run.first = run.last = e.timeStamp;
+				run.repeats = 0;
+				pass = true;
+			}
+			evicted = stripe.drainEvicted();
+		}
+		if (evicted != null)
+			emitAll(evicted, sink);
+		if (summary != null)
+			sink.emit(summary);
+		return pass;
+	}
+
+	/**
+	 * Emits summaries for all pending runs and forgets them.
+	 *
+	 * @param sink receiver for the summary events
+	 */
+	public void flush(IEventSink sink) {
+		emitAll(runs.clear(), sink);
+	}
+
+	/**
+	 * Emits summaries for the runs whose collapse window has ended and
+	 * forgets them, so that a burst followed by silence is reported without
+	 * waiting for the logger to log again.
+	 *
+	 * @param now the current time in milliseconds
+	 * @param sink receiver for the summary events
+	 */
+	public void flushExpired(final long now, IEventSink sink) {
+		emitAll(runs.removeIf(new Predicate<Run>() {
+			public boolean test(Run run) {
+				return now - run.first >= windowMillis;
+			}
+		}), sink);
+	}
+
+	private void emitAll(List<Run> ended, IEventSink sink) {
+		for (Run run : ended) {
+			LoggingEvent summary = summarize(run);
+			if (summary != null)
+				sink.emit(summary);
+		}
+	}
+
+	static LoggingEvent summarize(Run run) {
+		if (run.repeats == 0) return null;
+		String msg = String.format(
+			"Previous message repeated %d more times (first %tF %<tT.%<tL%<tz, last %tF %<tT.%<tL%<tz)",
+			run.repeats, new Date(run.first), new Date(run.last));
+		return new LoggingEvent(RepeatCollapser.class.getName(),
+			Logger.getLogger(run.loggerName), run.last, run.level, msg, null);
+	}
+
+	/**
+	 * Computes a 64-bit FNV-1a fingerprint of the event.  Every run of
+	 * characters that starts with a digit and continues with hex digits or
+	 * dashes (counters, ids, UUID tails) is folded into one placeholder so that
+	 * messages differing only in ids, counters or timings collapse together.
+	 */
+	static long fingerprint(LoggingEvent e) {
+		long h = FNV_OFFSET;
+		Level level = e.getLevel();
+		if (level != null)
+			h = (h ^ level.toInt()) * FNV_PRIME;
+		h = hashMasked(h, e.getRenderedMessage());
+		ThrowableInformation ti = e.getThrowableInformation();
+		if (ti != null) {
+			String[] rep = ti.getThrowableStrRep();
+			if (rep != null)
+				for (int i = 0; i < rep.length && i <= STACK_FRAMES_FINGERPRINTED; i++)
+					h = hashMasked(h, rep[i]);
+		}
+		return h;
+	}
+
+	static long hashMasked(long h, String s) {
+		if (s == null) return h;
+		boolean inNumber = false;
+		for (int i = 0, n = s.length(); i < n; i++) {
+			char c = s.charAt(i);
+			if (inNumber && isHexOrDash(c)) continue;
+			inNumber = c >= '0' && c <= '9';
+			if (inNumber) c = '#';
+			h = (h ^ c) * FNV_PRIME;
+		}
+		return (h ^ '\n') * FNV_PRIME;
+	}
+
+	private static boolean isHexOrDash(char c) {
+		return (c >= '0' && c <= '9') || (c >= 'a' && c <= 'f')
+			|| (c >= 'A' && c <= 'F') || c == '-';
+	}
+}
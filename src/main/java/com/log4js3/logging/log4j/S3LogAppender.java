@@ -1,7 +1,10 @@
 package com.log4js3.logging.log4j;
 
+import java.io.File;
 import java.net.InetAddress;
 import java.util.UUID;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
 
 import org.apache.log4j.Appender;
 import org.apache.log4j.AppenderSkeleton;
@@ -9,12 +12,22 @@ import org.apache.log4j.spi.Filter;
 import org.apache.log4j.spi.LoggingEvent;
 import org.apache.log4j.spi.OptionHandler;
 
-import com.amazonaws.regions.Regions;
 import com.amazonaws.services.s3.AmazonS3Client;
+import com.log4js3.logging.ChunkPool;
+import com.log4js3.logging.DrainReport;
 import com.log4js3.logging.LoggingEventCache;
-import com.log4js3.logging.aws.AwsClientBuilder;
+import com.log4js3.logging.PublishContext;
+import com.log4js3.logging.RolloverWindow;
+import com.log4js3.logging.ShutdownCoordinator;
+import com.log4js3.logging.aggregator.AggregatorPublishHelper;
+import com.log4js3.logging.aggregator.LogAggregator;
 import com.log4js3.logging.aws.S3Configuration;
 import com.log4js3.logging.aws.S3PublishHelper;
+import com.log4js3.logging.codec.JsonLinesEncoder;
+import com.log4js3.logging.codec.TemplateEncoder;
+import com.log4js3.logging.file.FilePublishHelper;
+import com.log4js3.logging.index.BloomFilter;
+import com.log4js3.logging.index.TokenExtractor;
 
 /**
  * The log appender adapter that hooks into the Log4j framework to collect
@@ -28,8 +41,79 @@ import com.log4js3.logging.aws.S3PublishHelper;
  *   <li>stagingBufferSize -- the buffer size to collect log events before
  *   		publishing them in a batch (e.g. 20000).</li>
  *   <li>autoFlushInterval -- interval in seconds to flush over to the same file until it fills up, 0 for no auto-flushing</li>
+ *   <li>rollover -- "none" (default), "minute", "hour" or "day" to cut
+ *   		objects on wall-clock boundaries of the event time stamps; keys
+ *   		are then stamped with the window start.</li>
+ *   <li>rolloverGrace -- seconds to wait for late events after a window
+ *   		ends before publishing it for good (default 10).</li>
+ *   <li>shutdownDeadline -- total seconds all appenders together may take to
+ *   		drain on shutdown; they drain in parallel (default 25).</li>
+ *   <li>spillDir -- local directory for batches that failed or were still
+ *   		unsent at the shutdown deadline; they are published again on the
+ *   		next start.  Without it such batches are dropped.</li>
+ *   <li>offHeapStaging -- stage events as UTF-8 bytes in pooled off-heap
+ *   		chunks that are reused across batches, instead of in heap
+ *   		Strings (default false).</li>
+ *   <li>offHeapChunkSize -- size in KB of each off-heap chunk (default 64).</li>
+ *   <li>offHeapLimit -- cap in MB on off-heap staging memory; past it,
+ *   		chunks are allocated on the heap (default 64).</li>
  *   <li>tags -- comma delimited list of additional tags to associate with the
  *   		events (e.g. "MainSite;Production").</li>
+ *   <li>encoding -- "text" to store the rendered lines as is (default), or
+ *   		"template" to store them in the template encoding (see
+ *   		{@link TemplateEncoder}); such objects get a ".logt" suffix.
+ *   		With gzip, expect objects roughly 1.4x smaller than gzipped
+ *   		text for number-heavy logs, and less for others.</li>
+ *   <li>jsonLines -- render events as JSON lines (timestamp, level, logger,
+ *   		thread, MDC, message and throwable) instead of through the layout
+ *   		(default false); no layout is needed then.  See
+ *   		{@link JsonLinesEncoder}.  Together with offHeapStaging, events
+ *   		are staged without intermediate Strings.</li>
+ *   <li>aggregatorPort -- (optional) port of a {@link LogAggregator} on the
+ *   		local host to ship batches to, instead of uploading them from
+ *   		this JVM.  While it is unavailable, batches are uploaded
+ *   		directly.</li>
+ *   <li>aggregatorToken -- shared secret the {@link LogAggregator} requires
+ *   		from its clients; required with aggregatorPort, and set to the
+ *   		same value for the aggregator's own appender.</li>
+ *   <li>bloomPattern -- (optional) regular expression whose matches (or
+ *   		first group) in a batch are indexed in a Bloom filter stored
+ *   		next to the object with a ".bloom" suffix, so that lookups can
+ *   		skip objects that do not contain a token (see {@link BloomFilter}).</li>
+ *   <li>bloomMdcKeys -- (optional) comma delimited MDC keys whose values are
+ *   		indexed as well; requires jsonLines.</li>
+ *   <li>bloomFalsePositiveRate -- target false positive rate of the Bloom
+ *   		filters (default 0.01).</li>
+ *   <li>filePath -- (optional) local directory to store every batch in as
+ *   		well, under the same names as the S3 objects.</li>
+ *   <li>destinationConcurrency -- batches each destination (S3, local files)
+ *   		may store at once (default 1).</li>
+ *   <li>destinationQueueSize -- batches that may wait for a destination;
+ *   		past it, that destination's copy is spilled (or dropped without
+ *   		a spillDir) while the other destinations still get the batch
+ *   		(default 16).</li>
+ * </ul>
+ * <br>
+ * <h2>Ingest</h2>
+ * These parameters reduce floods of repeated events before they are staged:
+ * <br>
+ * <ul>
+ *   <li>collapseRepeats -- collapse consecutive (near-)identical events from
+ *   		a logger into the first occurrence plus one summary line with the
+ *   		repeat count and first/last timestamps (default false).
+ *   		Sampling (below) applies before collapsing.</li>
+ *   <li>collapseWindow -- maximum span in seconds of one collapsed run
+ *   		(default 60); the summary of a run is staged at most about a
+ *   		second after its window ends, even if the logger stays silent.</li>
+ *   <li>samplingRate -- events per second let through per sampling key,
+ *   		0 for no sampling (default 0).  Dropped events are counted and
+ *   		reported in a summary line.</li>
+ *   <li>samplingBurst -- events that may be let through at once per
+ *   		sampling key (defaults to samplingRate).</li>
+ *   <li>samplingKey -- "logger" or "level" (default "logger"); other
+ *   		values are rejected.</li>
+ *   <li>ingestCacheSize -- maximum number of loggers/keys tracked by the
+ *   		above (default 1024).</li>
  * </ul>
  * <br>
  * <h2>S3</h2>
@@ -42,6 +126,12 @@ import com.log4js3.logging.aws.S3PublishHelper;
  *     credentials</li>
  *   <li>s3Path -- full path (bucket/key prefix) to use to compose the final key
  *     to use to store the log events batch</li>
+ *   <li>s3Transport -- "blocking" (default) to upload on the publish thread,
+ *     or "async" to upload on worker threads (virtual threads on Java 21+)
+ *     so that the next batch does not wait for the upload</li>
+ *   <li>s3UploadConcurrency -- maximum number of uploads in flight with the
+ *     async transport (default 64); on Java 8 at most 16 of them run at
+ *     once on platform threads, the others wait</li>
  * </ul>
  * <em>NOTES</em>:
  * <ul>
@@ -67,13 +157,61 @@ public class S3LogAppender extends AppenderSkeleton implements Appender, OptionH
 
 	static final int DEFAULT_THRESHOLD = 2000;
 	static final int MONITOR_PERIOD = 30;
+	static final int DEFAULT_ROLLOVER_GRACE = 10;
+	static final int DEFAULT_SHUTDOWN_DEADLINE = 25;
+	static final int DEFAULT_OFF_HEAP_CHUNK_SIZE = 64;
+	static final int DEFAULT_OFF_HEAP_LIMIT = 64;
+	static final int DEFAULT_COLLAPSE_WINDOW = 60;
+	static final int DEFAULT_INGEST_CACHE_SIZE = 1024;
+	static final int INGEST_CACHE_STRIPES = 16;
 
 	private int stagingBufferSize = DEFAULT_THRESHOLD;
 	private int autoFlushInterval;
+	private RolloverWindow rollover = RolloverWindow.NONE;
+	private int rolloverGrace = DEFAULT_ROLLOVER_GRACE;
+	private int shutdownDeadline = DEFAULT_SHUTDOWN_DEADLINE;
+	private File spillDir;
+	private boolean offHeapStaging;
+	private int offHeapChunkSize = DEFAULT_OFF_HEAP_CHUNK_SIZE;
+	private int offHeapLimit = DEFAULT_OFF_HEAP_LIMIT;
 	private boolean gzip = true;
+	private String encoding = PublishContext.ENCODING_TEXT;
+	private boolean jsonLines;
+	private int aggregatorPort;
+	private String aggregatorToken;
+	private String bloomPattern;
+	private String bloomMdcKeys;
+	private double bloomFalsePositiveRate = CachePublisher.DEFAULT_FALSE_POSITIVE_RATE;
+	private String filePath;
+	private int destinationConcurrency = CachePublisher.DEFAULT_CONCURRENCY;
+	private int destinationQueueSize = CachePublisher.DEFAULT_QUEUE_SIZE;
 	private boolean reportHostname;
+	private boolean collapseRepeats;
+	private int collapseWindow = DEFAULT_COLLAPSE_WINDOW;
+	private int samplingRate;
+	private int samplingBurst;
+	private String samplingKey = RateLimitSampler.KEY_LOGGER;
+	private int ingestCacheSize = DEFAULT_INGEST_CACHE_SIZE;
 
 	private LoggingEventCache stagingLog = null;
+	private RepeatCollapser collapser = null;
+	private RateLimitSampler sampler = null;
+
+	private final ShutdownCoordinator.IDrainable drainable = new ShutdownCoordinator.IDrainable() {
+		public void drain(long timeout, TimeUnit unit) {
+			S3LogAppender.this.drain(timeout, unit);
+		}
+	};
+
+	// Summaries are also emitted by the flush thread and on close; the layout
+	// is not thread safe, so they are staged under the lock doAppend holds
+	private final IEventSink stagingSink = new IEventSink() {
+		public void emit(LoggingEvent event) {
+			synchronized (S3LogAppender.this) {
+				stage(event);
+			}
+		}
+	};
 
 	private volatile String[] tags;
 	private volatile String hostName;
@@ -83,17 +221,30 @@ public class S3LogAppender extends AppenderSkeleton implements Appender, OptionH
 
 	@Override
 	public void close() {
-		System.out.println("S3LogAppender.close(): Cleaning up resources");
-		LoggingEventCache log = stagingLog;
-		if (null != log) {
+		drain(shutdownDeadline, TimeUnit.SECONDS);
+	}
+
+	void drain(long timeout, TimeUnit unit) {
+		LoggingEventCache log;
+		synchronized (drainable) {
+			log = stagingLog;
+			if (null == log) return;
+			System.out.println("S3LogAppender.close(): Cleaning up resources");
+			if (null != collapser)
+				collapser.flush(stagingSink);
+			if (null != sampler)
+				sampler.flush(stagingSink);
 			stagingLog = null;
-			log.close();
 		}
+		ShutdownCoordinator.getInstance().unregister(drainable);
+		DrainReport report = log.close(timeout, unit, spillDir);
+		System.out.println("S3LogAppender.close(): " + report);
 	}
 
 	@Override
 	public boolean requiresLayout() {
-		return true;
+		// JSON lines are rendered without the layout
+		return !jsonLines;
 	}
 
 	public void setStagingBufferSize(int buffer) {
@@ -126,6 +277,14 @@ public class S3LogAppender extends AppenderSkeleton implements Appender, OptionH
 		getS3().setRegion(region);
 	}
 
+	public void setS3Transport(String transport) {
+		getS3().setTransport(transport);
+	}
+
+	public void setS3UploadConcurrency(int uploadConcurrency) {
+		getS3().setUploadConcurrency(uploadConcurrency);
+	}
+
 	public void setTags(String tags) {
 		if (null != tags) {
 			this.tags = tags.split("[,;]");
@@ -138,24 +297,57 @@ public class S3LogAppender extends AppenderSkeleton implements Appender, OptionH
 	@Override
 	protected void append(LoggingEvent e) {
 		try {
-			stagingLog.add(getLayout().format(e) + LINE_SEPARATOR);
+			// Sample first, so that the collapser never summarizes repeats of
+			// an event the sampler dropped
+			if (null != sampler && !sampler.offer(e, stagingSink)) return;
+			if (null != collapser && !collapser.offer(e, stagingSink)) return;
+			stage(e);
 		} catch (Exception ex) {
 			errorHandler.error("Cannot append event", ex, 105, e);
 		}
 	}
 
+	/**
+	 * Stages events rendered elsewhere, such as batches received by a
+	 * {@link LogAggregator}.
+	 *
+	 * @param bytes source of the UTF-8 encoded events
+	 * @param off offset of the first byte
+	 * @param len number of bytes
+	 * @param events number of events the bytes hold
+	 * @param timeStamp the time of the events
+	 * @return a future completed once the events are stored or spilled
+	 * @throws IllegalStateException if the appender is not active
+	 */
+	public CompletableFuture<Void> stage(byte[] bytes, int off, int len, int events, long timeStamp) {
+		LoggingEventCache log = stagingLog;
+		if (null == log)
+			throw new IllegalStateException("S3LogAppender is not active");
+		return log.addTracked(bytes, off, len, events, timeStamp);
+	}
+
+	void stage(LoggingEvent e) {
+		LoggingEventCache log = stagingLog;
+		if (null == log)
+			return;
+		if (jsonLines) {
+			JsonLinesEncoder encoder = JsonLinesEncoder.forCurrentThread();
+			// encode() may grow the buffer, so fetch it afterwards
+			int len = encoder.encode(e);
+			log.add(encoder.buffer(), 0, len, e.timeStamp);
+		} else
+			log.add(getLayout().format(e) + LINE_SEPARATOR, e.timeStamp);
+	}
+
 	@Override
 	public void activateOptions() {
 		super.activateOptions();
 		try {
 			initFilters();
 			hostName = reportHostname ? InetAddress.getLocalHost().getHostName() : null;
-			if (null != s3) {
-				AwsClientBuilder builder =
-					new AwsClientBuilder(Regions.valueOf(s3.getRegion()),
-						s3.getAccessKey(), s3.getSecretKey());
-				s3Client = builder.build(AmazonS3Client.class);
-			}
+			if (null != s3)
+				s3Client = s3.createClient();
+			initIngest();
 			initStagingLog();
 		} catch (Exception ex) {
 			errorHandler.error("Cannot initialize resources", ex, 100);
@@ -176,6 +368,27 @@ public class S3LogAppender extends AppenderSkeleton implements Appender, OptionH
 		}});
 	}
 
+	void initIngest() {
+		if (collapseRepeats)
+			collapser = new RepeatCollapser(INGEST_CACHE_STRIPES, ingestCacheSize,
+				TimeUnit.SECONDS.toMillis(collapseWindow));
+		if (samplingRate > 0)
+			sampler = new RateLimitSampler(INGEST_CACHE_STRIPES, ingestCacheSize,
+				samplingRate, samplingBurst > 0 ? samplingBurst : samplingRate,
+				samplingKey);
+	}
+
+	/**
+	 * Stages the summaries of collapsed runs whose window ended.
+	 *
+	 * @param now the current time in milliseconds
+	 */
+	void flushExpiredRepeats(long now) {
+		RepeatCollapser c = collapser;
+		if (null != c)
+			c.flushExpired(now, stagingSink);
+	}
+
 	public static String generateUUIDBase36() {
 		UUID u = UUID.randomUUID();
 		return	Long.toUnsignedString(u.getMostSignificantBits(), 36) +
@@ -185,20 +398,57 @@ public class S3LogAppender extends AppenderSkeleton implements Appender, OptionH
 	void initStagingLog() throws Exception {
 		if (null == stagingLog)
 		try {
-			CachePublisher publisher = new CachePublisher(hostName, tags, gzip);
+			CachePublisher publisher = new CachePublisher(hostName, tags, gzip, encoding);
+			TokenExtractor tokens = new TokenExtractor();
+			if (null != bloomPattern)
+				tokens.addPattern(bloomPattern);
+			if (null != bloomMdcKeys)
+				for (String key : bloomMdcKeys.split("[,;]"))
+					if (!key.trim().isEmpty()) tokens.addMdcKey(key.trim());
+			if (!tokens.isEmpty())
+				publisher.setTokenIndex(tokens, bloomFalsePositiveRate);
+			IPublishHelper direct = null;
 			if (null != s3Client) {
 				System.out.println("S3LogAppender path: "+s3.getPath());
-				publisher.addHelper(new S3PublishHelper(s3Client, s3.getPath()));
+				direct = new S3PublishHelper(s3Client,
+					s3.createTransport(s3Client), s3.getPath());
 			} else
 				System.out.println("S3LogAppender - not configured ");
+			if (aggregatorPort > 0 && (null == aggregatorToken || aggregatorToken.isEmpty())) {
+				System.out.println("S3LogAppender: aggregatorPort requires aggregatorToken, publishing directly");
+				if (null != direct)
+					publisher.addHelper(direct, destinationConcurrency, destinationQueueSize);
+			} else if (aggregatorPort > 0) {
+				System.out.println("S3LogAppender aggregator port: "+aggregatorPort);
+				publisher.addHelper(new AggregatorPublishHelper(aggregatorPort, aggregatorToken, direct),
+					destinationConcurrency, destinationQueueSize);
+			} else if (null != direct)
+				publisher.addHelper(direct, destinationConcurrency, destinationQueueSize);
+			if (null != filePath) {
+				System.out.println("S3LogAppender file path: "+filePath);
+				publisher.addHelper(new FilePublishHelper(filePath),
+					destinationConcurrency, destinationQueueSize);
+			}
 			String id = generateUUIDBase36();
-			stagingLog = new LoggingEventCache(id, stagingBufferSize, autoFlushInterval, publisher);
+			ChunkPool chunkPool = offHeapStaging
+				? new ChunkPool(offHeapChunkSize * 1024, offHeapLimit * 1024L * 1024L)
+				: null;
+			stagingLog = new LoggingEventCache(id, stagingBufferSize, autoFlushInterval,
+				rollover, rolloverGrace, chunkPool, publisher);
+			if (null != spillDir) {
+				stagingLog.setSpillDir(spillDir);
+				int replayed = stagingLog.replaySpill(spillDir);
+				if (replayed > 0)
+					System.out.println("S3LogAppender replayed " + replayed + " spilled batches from " + spillDir);
+			}
+			if (null != collapser)
+				stagingLog.schedule(new Runnable() {
+					public void run() {
+						flushExpiredRepeats(System.currentTimeMillis());
+					}
+				}, 1, TimeUnit.SECONDS);
 
-			Runtime.getRuntime().addShutdownHook(new Thread() {
-				public void run() {
-					close();
-				}
-			});
+			ShutdownCoordinator.getInstance().register(drainable, shutdownDeadline, TimeUnit.SECONDS);
 		} catch (Exception e) {
 			System.out.println("Failed to initialize S3LogAppender: "+e);
 			e.printStackTrace();
@@ -209,12 +459,130 @@ public class S3LogAppender extends AppenderSkeleton implements Appender, OptionH
 		this.autoFlushInterval = autoFlushInterval;
 	}
 
+	public void setRollover(String rollover) {
+		this.rollover = RolloverWindow.valueOf(rollover.trim().toUpperCase());
+	}
+
+	public void setRolloverGrace(int rolloverGrace) {
+		this.rolloverGrace = rolloverGrace;
+	}
+
+	public void setShutdownDeadline(int shutdownDeadline) {
+		this.shutdownDeadline = shutdownDeadline;
+	}
+
+	public void setSpillDir(String spillDir) {
+		this.spillDir = new File(spillDir);
+	}
+
+	/**
+	 * @return the spill directory, or null if none is configured
+	 */
+	public File getSpillDirectory() {
+		return spillDir;
+	}
+
+	public void setOffHeapStaging(boolean offHeapStaging) {
+		this.offHeapStaging = offHeapStaging;
+	}
+
+	public void setOffHeapChunkSize(int offHeapChunkSize) {
+		this.offHeapChunkSize = offHeapChunkSize;
+	}
+
+	public void setOffHeapLimit(int offHeapLimit) {
+		this.offHeapLimit = offHeapLimit;
+	}
+
 	public void setGzip(boolean gzip) {
 		this.gzip = gzip;
 	}
 
+	public void setEncoding(String encoding) {
+		this.encoding = encoding.trim().toLowerCase();
+	}
+
+	public void setJsonLines(boolean jsonLines) {
+		this.jsonLines = jsonLines;
+	}
+
+	public void setAggregatorPort(int aggregatorPort) {
+		this.aggregatorPort = aggregatorPort;
+	}
+
+	public int getAggregatorPort() {
+		return aggregatorPort;
+	}
+
+	public void setAggregatorToken(String aggregatorToken) {
+		this.aggregatorToken = aggregatorToken;
+	}
+
+	public String getAggregatorToken() {
+		return aggregatorToken;
+	}
+
+	public void setBloomPattern(String bloomPattern) {
+		this.bloomPattern = bloomPattern;
+	}
+
+	public void setBloomMdcKeys(String bloomMdcKeys) {
+		this.bloomMdcKeys = bloomMdcKeys;
+	}
+
+	public void setBloomFalsePositiveRate(String bloomFalsePositiveRate) {
+		this.bloomFalsePositiveRate = Double.parseDouble(bloomFalsePositiveRate.trim());
+	}
+
+	public void setFilePath(String filePath) {
+		this.filePath = filePath;
+	}
+
+	public void setDestinationConcurrency(int destinationConcurrency) {
+		this.destinationConcurrency = destinationConcurrency;
+	}
+
+	public void setDestinationQueueSize(int destinationQueueSize) {
+		this.destinationQueueSize = destinationQueueSize;
+	}
+
 	public void setReportHostname(boolean reportHostname) {
 		this.reportHostname = reportHostname;
 	}
 
+	public void setCollapseRepeats(boolean collapseRepeats) {
+		this.collapseRepeats = collapseRepeats;
+	}
+
+	public void setCollapseWindow(int collapseWindow) {
+		this.collapseWindow = collapseWindow;
+	}
+
+	public void setSamplingRate(int samplingRate) {
+		this.samplingRate = samplingRate;
+	}
+
+	public void setSamplingBurst(int samplingBurst) {
+		this.samplingBurst = samplingBurst;
+	}
+
+	public void setSamplingKey(String samplingKey) {
+		String key = samplingKey.trim();
+		if (!RateLimitSampler.KEY_LOGGER.equalsIgnoreCase(key)
+				&& !RateLimitSampler.KEY_LEVEL.equalsIgnoreCase(key))
+			throw new IllegalArgumentException("samplingKey must be \"logger\" or \"level\": " + samplingKey);
+		this.samplingKey = key;
+	}
+
+	public void setIngestCacheSize(int ingestCacheSize) {
+		this.ingestCacheSize = ingestCacheSize;
+	}
+
+	/**
+	 * @return the number of events dropped by sampling so far
+	 */
+	public long getSampledOutCount() {
+		return null == sampler ? 0 : sampler.getTotalDropped();
+	}
+
 }
@@ -0,0 +1,24 @@
+package com.log4js3.logging.aws;
+
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * Creates the executor running uploads of {@link AsyncS3Transport}.  This is
+ * the Java 21 version of the multi-release jar: every upload runs on its own
+ * virtual thread.
+ *
+ */
+final class UploadExecutors {
+	private UploadExecutors() {
+	}
+
+	/**
+	 * @param maxInFlight maximum number of uploads in flight (all get a
+	 * 	virtual thread)
+	 * @return the executor
+	 */
+	static ExecutorService newUploadExecutor(int maxInFlight) {
+		return Executors.newVirtualThreadPerTaskExecutor();
+	}
+}
@@ -0,0 +1,69 @@
+package com.log4js3.example;
+
+import java.io.IOException;
+import java.io.InputStream;
+
+import com.amazonaws.services.s3.AmazonS3Client;
+import com.amazonaws.services.s3.model.ListObjectsRequest;
+import com.amazonaws.services.s3.model.ObjectListing;
+import com.amazonaws.services.s3.model.S3Object;
+import com.amazonaws.services.s3.model.S3ObjectSummary;
+import com.log4js3.logging.aws.S3Configuration;
+import com.log4js3.logging.index.BloomFilter;
+import com.log4js3.logging.log4j.CachePublisher;
+
+/**
+ * Example program listing the objects under a prefix that may contain a
+ * token, using the Bloom filters stored next to them (bloomPattern /
+ * bloomMdcKeys).  Objects without a readable filter are always listed.
+ * <pre>
+ * BloomLookup bucket/logs/2019/06/08/ req-1f2e3d4c [region]
+ * </pre>
+ *
+ */
+public class BloomLookup {
+	public static void main(String[] args) throws IOException {
+		if (args.length < 2) {
+			System.out.println("Usage: BloomLookup <bucket/prefix> <token> [region]");
+			return;
+		}
+		String[] pp = args[0].split("/", 2);
+		String bucket = pp[0];
+		String prefix = pp.length > 1 ? pp[1] : "";
+		String token = args[1];
+		S3Configuration config = new S3Configuration();
+		if (args.length > 2) config.setRegion(args[2]);
+		AmazonS3Client client = config.createClient();
+
+		int objects = 0, candidates = 0;
+		ObjectListing listing = client.listObjects(new ListObjectsRequest()
+			.withBucketName(bucket).withPrefix(prefix));
+		for (;;) {
+			for (S3ObjectSummary summary : listing.getObjectSummaries()) {
+				String key = summary.getKey();
+				if (key.endsWith(CachePublisher.INDEX_SUFFIX)) continue;
+				objects++;
+				if (mightContain(client, bucket, key + CachePublisher.INDEX_SUFFIX, token)) {
+					candidates++;
+					System.out.println(key);
+				}
+			}
+			if (!listing.isTruncated()) break;
+			listing = client.listNextBatchOfObjects(listing);
+		}
+		System.out.println(String.format("%d of %d objects may contain %s", candidates, objects, token));
+	}
+
+	static boolean mightContain(AmazonS3Client client, String bucket, String indexKey, String token)
+			throws IOException {
+		if (!client.doesObjectExist(bucket, indexKey))
+			return true;
+		S3Object index = client.getObject(bucket, indexKey);
+		try (InputStream in = index.getObjectContent()) {
+			return BloomFilter.readFrom(in).mightContain(token);
+		} catch (IOException e) {
+			System.out.println("Cannot read " + indexKey + ": " + e.getMessage());
+			return true;
+		}
+	}
+}
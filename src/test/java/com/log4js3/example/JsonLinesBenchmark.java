@@ -0,0 +1,118 @@
+package com.log4js3.example;
+
+import java.lang.management.ManagementFactory;
+import java.util.Random;
+
+import org.apache.log4j.Layout;
+import org.apache.log4j.Level;
+import org.apache.log4j.Logger;
+import org.apache.log4j.MDC;
+import org.apache.log4j.PatternLayout;
+import org.apache.log4j.spi.LoggingEvent;
+
+import com.log4js3.logging.ChunkPool;
+import com.log4js3.logging.ChunkedBuffer;
+import com.log4js3.logging.codec.JsonLinesEncoder;
+
+/**
+ * Example program comparing the cost of staging events rendered through a
+ * PatternLayout plus String concatenation (as S3LogAppender does by
+ * default) against the JSON lines encoder.  Both stage into off-heap
+ * chunks; the program reports time and heap allocation per event.
+ *
+ */
+public class JsonLinesBenchmark {
+	static final int EVENTS = 20000;
+	static final int ROUNDS = 50;
+	static final String LINE_SEPARATOR = System.getProperty("line.separator");
+
+	static final String[] LOGGERS = {
+		"com.acme.web.RequestLogger", "com.acme.cache.CacheManager",
+		"com.acme.db.ConnectionPool", "com.acme.jobs.Scheduler",
+	};
+
+	interface Stager {
+		void stage(LoggingEvent e, ChunkedBuffer buffer);
+	}
+
+	public static void main(String[] args) {
+		LoggingEvent[] events = generate(EVENTS);
+		ChunkPool pool = new ChunkPool(64 * 1024, 64L * 1024 * 1024);
+
+		final Layout layout = new PatternLayout("%d{ISO8601} %p [%t] %c %X{requestId} %m");
+		Stager pattern = new Stager() {
+			public void stage(LoggingEvent e, ChunkedBuffer buffer) {
+				buffer.append(layout.format(e) + LINE_SEPARATOR);
+			}
+		};
+		Stager json = new Stager() {
+			public void stage(LoggingEvent e, ChunkedBuffer buffer) {
+				JsonLinesEncoder encoder = JsonLinesEncoder.forCurrentThread();
+				int len = encoder.encode(e);
+				buffer.append(encoder.buffer(), 0, len);
+			}
+		};
+
+		// warm up
+		run(pattern, events, pool);
+		run(json, events, pool);
+
+		System.out.println(String.format("%d events x %d rounds", EVENTS, ROUNDS));
+		report("PatternLayout", pattern, events, pool);
+		report("JSON lines", json, events, pool);
+	}
+
+	static long run(Stager stager, LoggingEvent[] events, ChunkPool pool) {
+		long bytes = 0;
+		for (int r = 0; r < ROUNDS; r++) {
+			ChunkedBuffer buffer = new ChunkedBuffer(pool);
+			for (LoggingEvent e : events)
+				stager.stage(e, buffer);
+			bytes = buffer.length();
+			buffer.release();
+		}
+		return bytes;
+	}
+
+	static void report(String name, Stager stager, LoggingEvent[] events, ChunkPool pool) {
+		long a0 = allocatedBytes();
+		long t0 = System.nanoTime();
+		long size = run(stager, events, pool);
+		long t1 = System.nanoTime();
+		long a1 = allocatedBytes();
+		long count = (long) EVENTS * ROUNDS;
+		System.out.println(String.format("%-14s %9d bytes/batch %7.1f ns/event %7.1f B allocated/event",
+			name, size, (t1 - t0) / (double) count, a0 < 0 ? -1.0 : (a1 - a0) / (double) count));
+	}
+
+	static long allocatedBytes() {
+		java.lang.management.ThreadMXBean bean = ManagementFactory.getThreadMXBean();
+		if (bean instanceof com.sun.management.ThreadMXBean)
+			return ((com.sun.management.ThreadMXBean) bean).getThreadAllocatedBytes(
+				Thread.currentThread().getId());
+		return -1;
+	}
+
+	static LoggingEvent[] generate(int count) {
+		Random rnd = new Random(42);
+		long ts = 1560000000000L;
+		LoggingEvent[] events = new LoggingEvent[count];
+		for (int i = 0; i < count; i++) {
+			ts += rnd.nextInt(20);
+			MDC.put("requestId", Integer.toHexString(rnd.nextInt()));
+			Throwable t = rnd.nextInt(100) == 0 ? new IllegalStateException("job " + i + " failed") : null;
+			events[i] = new LoggingEvent(Logger.class.getName(),
+				Logger.getLogger(LOGGERS[rnd.nextInt(LOGGERS.length)]), ts,
+				t == null ? Level.INFO : Level.ERROR,
+				String.format("GET /api/orders/%d completed in %d ms \"ok\"", rnd.nextInt(1000000), rnd.nextInt(5000)),
+				t);
+			// Capture the MDC and render once, as the appender would see them
+			events[i].getMDCCopy();
+			events[i].getThreadName();
+			events[i].getRenderedMessage();
+			events[i].getThrowableStrRep();
+		}
+		MDC.remove("requestId");
+		return events;
+	}
+}
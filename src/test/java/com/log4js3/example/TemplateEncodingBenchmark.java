@@ -0,0 +1,93 @@
+package com.log4js3.example;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.text.SimpleDateFormat;
+import java.util.Date;
+import java.util.Random;
+import java.util.zip.GZIPOutputStream;
+
+import com.log4js3.logging.codec.TemplateDecoder;
+import com.log4js3.logging.codec.TemplateEncoder;
+
+/**
+ * Example program comparing the size and CPU cost of publishing a batch as
+ * gzipped rendered text against the template encoding (with and without
+ * gzip on top).  Also checks that decoding reproduces the (valid UTF-16)
+ * batch exactly.
+ *
+ */
+public class TemplateEncodingBenchmark {
+	static final int LINES = 20000;
+	static final int ROUNDS = 20;
+
+	static final String[] PATTERNS = {
+		"%s INFO [http-nio-8080-exec-%d] com.acme.web.RequestLogger GET /api/orders/%d completed in %d ms status=%d",
+		"%s DEBUG [pool-%d-thread-1] com.acme.cache.CacheManager cache hit ratio %d%% size=%d evictions=%d",
+		"%s WARN [main] com.acme.db.ConnectionPool slow query took %d ms, %d rows, pool active=%d idle=%d",
+		"%s ERROR [worker-%d] com.acme.jobs.Scheduler job %d failed after %d retries, next attempt in %d s",
+	};
+
+	public static void main(String[] args) throws IOException {
+		String batch = generate(LINES);
+		byte[] text = batch.getBytes(StandardCharsets.UTF_8);
+
+		byte[] encoded = new TemplateEncoder().encode(batch);
+		if (!batch.equals(TemplateDecoder.decode(encoded)))
+			throw new IllegalStateException("Template encoding does not round trip");
+
+		// warm up
+		for (int i = 0; i < ROUNDS; i++) {
+			gzip(text);
+			gzip(new TemplateEncoder().encode(batch));
+		}
+
+		long t0 = System.nanoTime();
+		byte[] gzText = null;
+		for (int i = 0; i < ROUNDS; i++)
+			gzText = gzip(batch.getBytes(StandardCharsets.UTF_8));
+		long t1 = System.nanoTime();
+		byte[] tmpl = null;
+		for (int i = 0; i < ROUNDS; i++)
+			tmpl = new TemplateEncoder().encode(batch);
+		long t2 = System.nanoTime();
+		byte[] gzTmpl = null;
+		for (int i = 0; i < ROUNDS; i++)
+			gzTmpl = gzip(new TemplateEncoder().encode(batch));
+		long t3 = System.nanoTime();
+
+		System.out.println(String.format("%d lines, %d bytes of text", LINES, text.length));
+		report("text + gzip", gzText.length, t1 - t0);
+		report("template", tmpl.length, t2 - t1);
+		report("template + gzip", gzTmpl.length, t3 - t2);
+	}
+
+	static void report(String name, int size, long nanos) {
+		System.out.println(String.format("%-16s %9d bytes %8.2f ms/batch",
+			name, size, nanos / 1e6 / ROUNDS));
+	}
+
+	static String generate(int lines) {
+		Random rnd = new Random(42);
+		SimpleDateFormat fmt = new SimpleDateFormat("yyyy-MM-dd HH:mm:ss,SSS");
+		long ts = 1560000000000L;
+		StringBuilder sb = new StringBuilder();
+		for (int i = 0; i < lines; i++) {
+			ts += rnd.nextInt(20);
+			String p = PATTERNS[rnd.nextInt(PATTERNS.length)];
+			sb.append(String.format(p, fmt.format(new Date(ts)), rnd.nextInt(200),
+				rnd.nextInt(1000000), rnd.nextInt(5000), 200 + rnd.nextInt(5)));
+			sb.append('\n');
+		}
+		return sb.toString();
+	}
+
+	static byte[] gzip(byte[] data) throws IOException {
+		ByteArrayOutputStream buf = new ByteArrayOutputStream();
+		GZIPOutputStream out = new GZIPOutputStream(buf);
+		out.write(data);
+		out.finish();
+		return buf.toByteArray();
+	}
+}
@@ -0,0 +1,85 @@
+package com.log4js3.logging;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+
+import org.junit.Test;
+
+public class ChunkedBufferTest {
+
+	@Test
+	public void roundTripsAcrossChunks() throws IOException {
+		ChunkedBuffer buffer = new ChunkedBuffer(new ChunkPool(16, 1024 * 1024));
+		StringBuilder expected = new StringBuilder();
+		for (int i = 0; i < 50; i++) {
+			String line = "event " + i + " h\u00e9llo \u2603 \ud83d\ude00\n";
+			buffer.append(line);
+			expected.append(line);
+		}
+		byte[] raw = "raw bytes split over chunks\n".getBytes(StandardCharsets.UTF_8);
+		buffer.append(raw, 0, raw.length);
+		expected.append("raw bytes split over chunks\n");
+
+		byte[] bytes = expected.toString().getBytes(StandardCharsets.UTF_8);
+		ByteChunks snapshot = buffer.snapshot();
+		assertEquals(bytes.length, snapshot.length());
+		assertEquals(expected.toString(), snapshot.toString());
+		assertArrayEquals(bytes, snapshot.toByteArray());
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		snapshot.writeTo(out);
+		assertArrayEquals(bytes, out.toByteArray());
+		try (InputStream in = snapshot.newInputStream()) {
+			ByteArrayOutputStream read = new ByteArrayOutputStream();
+			byte[] b = new byte[7];
+			for (int n; (n = in.read(b)) > 0;)
+				read.write(b, 0, n);
+			assertArrayEquals(bytes, read.toByteArray());
+		}
+	}
+
+	@Test
+	public void snapshotIgnoresLaterAppends() {
+		ChunkedBuffer buffer = new ChunkedBuffer(new ChunkPool(16, 1024 * 1024));
+		buffer.append("first\n");
+		ByteChunks snapshot = buffer.snapshot();
+		buffer.append("second line, past the first chunk\n");
+		assertEquals("first\n", snapshot.toString());
+		assertEquals("first\nsecond line, past the first chunk\n", buffer.snapshot().toString());
+	}
+
+	@Test
+	public void retainedChunksStayOutOfThePool() {
+		ChunkPool pool = new ChunkPool(16, 1024 * 1024);
+		ChunkedBuffer buffer = new ChunkedBuffer(pool);
+		buffer.append("0123456789012345678901234567890123456789\n");
+		int chunks = pool.getAllocatedChunks();
+		ByteChunks snapshot = buffer.snapshot();
+		buffer.retain();
+		buffer.release();
+
+		// Still retained: a new buffer cannot reuse the chunks
+		ChunkedBuffer other = new ChunkedBuffer(pool);
+		other.append("XXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXX\n");
+		assertEquals(2 * chunks, pool.getAllocatedChunks());
+		assertEquals("0123456789012345678901234567890123456789\n", snapshot.toString());
+
+		// Last reference released: the chunks are reused
+		buffer.release();
+		new ChunkedBuffer(pool).append("YYYYYYYYYYYYYYYYYYYYYYYYYYYYYYYYYYYYYYYY\n");
+		assertEquals(2 * chunks, pool.getAllocatedChunks());
+	}
+
+	@Test
+	public void poolFallsBackToHeapPastItsLimit() {
+		ChunkPool pool = new ChunkPool(16, 32);
+		ChunkedBuffer buffer = new ChunkedBuffer(pool);
+		buffer.append("0123456789012345678901234567890123456789\n");
+		assertEquals(2, pool.getAllocatedChunks());
+		assertEquals("0123456789012345678901234567890123456789\n", buffer.snapshot().toString());
+	}
+}
@@ -0,0 +1,320 @@
+package com.log4js3.logging;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+public class LoggingEventCacheTest {
+
+	/**
+	 * Stores batches in memory, optionally failing them or storing them
+	 * later on another thread.
+	 */
+	static class RecordingPublisher implements LoggingEventCache.ICachePublisher {
+		final List<String> stored = Collections.synchronizedList(new ArrayList<String>());
+		volatile boolean failing;
+		volatile long delayMillis;
+		final ExecutorService executor = Executors.newSingleThreadExecutor(new DeamonThreadFactory());
+		private String text;
+		private ByteChunks chunks;
+
+		public PublishContext createContext(String cacheName) {
+			return new PublishContext(cacheName, null, null, false);
+		}
+
+		public void startPublish(PublishContext ctx) {
+			text = null;
+			chunks = null;
+		}
+
+		public void publish(PublishContext ctx, String log) {
+			text = log;
+		}
+
+		public void publish(PublishContext ctx, ByteChunks logs) {
+			chunks = logs;
+		}
+
+		public void endPublish(PublishContext ctx) {
+			endPublishAsync(ctx);
+		}
+
+		public CompletableFuture<Void> endPublishAsync(PublishContext ctx) {
+			final String t = text;
+			final ByteChunks c = chunks;
+			final boolean fail = failing;
+			final CompletableFuture<Void> f = new CompletableFuture<Void>();
+			Runnable store = new Runnable() {
+				public void run() {
+					if (fail) {
+						f.completeExceptionally(new IOException("down"));
+						return;
+					}
+					// Chunks are read lazily, like a destination thread would
+					stored.add(null == c ? t : c.toString());
+					f.complete(null);
+				}
+			};
+			if (delayMillis == 0) {
+				store.run();
+			} else {
+				executor.execute(new Runnable() {
+					public void run() {
+						try {
+							Thread.sleep(delayMillis);
+						} catch (InterruptedException e) {
+							Thread.currentThread().interrupt();
+						}
+						store.run();
+					}
+				});
+			}
+			return f;
+		}
+
+		int lines() {
+			int n = 0;
+			synchronized (stored) {
+				for (String s : stored)
+					for (int i = 0; i < s.length(); i++)
+						if (s.charAt(i) == '\n') n++;
+			}
+			return n;
+		}
+	}
+
+	private File spillDir;
+
+	@Before
+	public void createSpillDir() throws IOException {
+		spillDir = Files.createTempDirectory("spill").toFile();
+	}
+
+	@After
+	public void deleteSpillDir() {
+		File[] files = spillDir.listFiles();
+		if (null != files)
+			for (File f : files)
+				f.delete();
+		spillDir.delete();
+	}
+
+	private LoggingEventCache cache(String name, int capacity, ChunkPool pool, RecordingPublisher publisher) {
+		return new LoggingEventCache(name, capacity, 0, RolloverWindow.NONE, 0, pool, publisher);
+	}
+
+	@Test
+	public void publishesWhenCapacityIsReached() {
+		RecordingPublisher publisher = new RecordingPublisher();
+		LoggingEventCache cache = cache("c", 3, null, publisher);
+		cache.add("a\n");
+		cache.add("b\n");
+		cache.add("c\n");
+		cache.add("d\n");
+		DrainReport report = cache.close(10, TimeUnit.SECONDS, null);
+		// The first batch may be stored before the cache is closed
+		assertEquals(0, report.lostBatches);
+		assertEquals("[a\nb\nc\n, d\n]", publisher.stored.toString());
+	}
+
+	@Test
+	public void spillsUnsentBatchesAndReplaysThemOnce() {
+		RecordingPublisher failing = new RecordingPublisher();
+		failing.failing = true;
+		LoggingEventCache cache = cache("first", 100, new ChunkPool(16, 1024 * 1024), failing);
+		for (int i = 0; i < 20; i++)
+			cache.add("event " + i + "\n");
+		DrainReport report = cache.close(10, TimeUnit.SECONDS, spillDir);
+		assertEquals(1, report.spilledBatches);
+		assertEquals(0, report.lostBatches);
+		assertEquals(1, spillDir.list().length);
+		assertTrue(spillDir.list()[0].endsWith(LoggingEventCache.SPILL_SUFFIX));
+
+		RecordingPublisher publisher = new RecordingPublisher();
+		LoggingEventCache next = cache("second", 5, null, publisher);
+		LoggingEventCache other = cache("third", 5, null, publisher);
+		assertEquals(1, next.replaySpill(spillDir));
+		assertEquals(0, other.replaySpill(spillDir));
+		next.close();
+		other.close();
+		// Deleted once stored
+		assertEquals(0, spillDir.list().length);
+		// Replayed as one batch of 20 events, not as a single event
+		assertEquals(1, publisher.stored.size());
+		assertEquals(20, publisher.lines());
+		assertTrue(publisher.stored.get(0).startsWith("event 0\nevent 1\n"));
+	}
+
+	@Test
+	public void keepsReplayedFileUntilStored() throws Exception {
+		RecordingPublisher failing = new RecordingPublisher();
+		failing.failing = true;
+		LoggingEventCache cache = cache("first", 100, null, failing);
+		cache.add("a\n");
+		cache.close(10, TimeUnit.SECONDS, spillDir);
+		String name = spillDir.list()[0];
+
+		// Dropped again: the file is given back under its name
+		LoggingEventCache next = cache("second", 100, null, failing);
+		assertEquals(1, next.replaySpill(spillDir));
+		assertEquals(1, spillDir.list().length);
+		next.close(10, TimeUnit.SECONDS, null);
+		assertEquals("[" + name + "]", Arrays.toString(spillDir.list()));
+
+		RecordingPublisher publisher = new RecordingPublisher();
+		LoggingEventCache last = cache("third", 100, null, publisher);
+		assertEquals(1, last.replaySpill(spillDir));
+		last.close();
+		assertEquals("[a\n]", publisher.stored.toString());
+		assertEquals(0, spillDir.list().length);
+	}
+
+	@Test
+	public void replaySkipsFilesStillBeingWritten() throws IOException {
+		try (FileOutputStream out = new FileOutputStream(
+				new File(spillDir, "0_other_0" + LoggingEventCache.SPILL_SUFFIX + ".tmp"))) {
+			out.write("partial\n".getBytes("UTF-8"));
+		}
+		RecordingPublisher publisher = new RecordingPublisher();
+		LoggingEventCache cache = cache("c", 5, null, publisher);
+		assertEquals(0, cache.replaySpill(spillDir));
+		cache.close();
+		assertTrue(publisher.stored.isEmpty());
+	}
+
+	@Test
+	public void spillsFailedBatchesWhileRunning() throws Exception {
+		RecordingPublisher publisher = new RecordingPublisher();
+		publisher.failing = true;
+		LoggingEventCache cache = cache("c", 2, null, publisher);
+		cache.setSpillDir(spillDir);
+		CompletableFuture<Void> tracked = cache.addTracked("a\n".getBytes("UTF-8"), 0, 2, 1, 0);
+		cache.add("b\n");
+		tracked.get(10, TimeUnit.SECONDS);
+		assertEquals(1, spillDir.list().length);
+		assertEquals("a\nb\n", new String(Files.readAllBytes(spillDir.listFiles()[0].toPath()), "UTF-8"));
+		cache.close();
+	}
+
+	@Test
+	public void republishesFailedOpenBatch() {
+		RecordingPublisher publisher = new RecordingPublisher();
+		LoggingEventCache cache = cache("c", 100, null, publisher);
+		cache.setSpillDir(spillDir);
+		cache.add("a\n");
+		publisher.failing = true;
+		cache.flushAndPublishQueue(true, true);
+		publisher.failing = false;
+		// Nothing new, but the failed open batch is published again
+		cache.flushAndPublishQueue(true, true);
+		cache.close();
+		assertEquals("[a\n]", publisher.stored.toString());
+		assertEquals(0, spillDir.list().length);
+	}
+
+	@Test
+	public void trackedEventsCompleteOnceStored() throws Exception {
+		RecordingPublisher publisher = new RecordingPublisher();
+		publisher.delayMillis = 50;
+		LoggingEventCache cache = cache("c", 100, null, publisher);
+		CompletableFuture<Void> tracked = cache.addTracked("a\n".getBytes("UTF-8"), 0, 2, 1, 0);
+		assertFalse(tracked.isDone());
+		cache.flushAndPublishQueue(false, true);
+		tracked.get(10, TimeUnit.SECONDS);
+		assertEquals("[a\n]", publisher.stored.toString());
+		cache.close();
+	}
+
+	@Test
+	public void trackedEventsFailWhenDropped() throws Exception {
+		RecordingPublisher publisher = new RecordingPublisher();
+		publisher.failing = true;
+		LoggingEventCache cache = cache("c", 1, null, publisher);
+		CompletableFuture<Void> tracked = cache.addTracked("a\n".getBytes("UTF-8"), 0, 2, 1, 0);
+		try {
+			tracked.get(10, TimeUnit.SECONDS);
+			assertTrue("expected failure", false);
+		} catch (java.util.concurrent.ExecutionException e) {
+			// dropped without a spill directory
+		}
+		cache.close();
+	}
+
+	@Test
+	public void concludedChunksOutliveSlowDestinations() {
+		ChunkPool pool = new ChunkPool(16, 1024 * 1024);
+		RecordingPublisher publisher = new RecordingPublisher();
+		publisher.delayMillis = 200;
+		LoggingEventCache cache = cache("c", 1000, pool, publisher);
+		for (int i = 0; i < 20; i++)
+			cache.add("event " + i + "\n");
+		cache.flushAndPublishQueue(false, true);
+		// Concludes the window; nothing new to publish, the chunks are
+		// released while the open batch is still being stored
+		cache.flushAndPublishQueue(false, false);
+		ChunkedBuffer other = new ChunkedBuffer(pool);
+		for (int i = 0; i < 50; i++)
+			other.append("XXXXXXXXXXXXXXXXXXXXXXXXXXXXXXX\n");
+		cache.close();
+		assertEquals(1, publisher.stored.size());
+		assertFalse(publisher.stored.get(0).contains("X"));
+		assertEquals(20, publisher.lines());
+	}
+
+	@Test
+	public void concurrentAddsArePublishedExactlyOnce() throws Exception {
+		final RecordingPublisher publisher = new RecordingPublisher();
+		final LoggingEventCache cache = cache("c", 100, new ChunkPool(64, 1024 * 1024), publisher);
+		final int threads = 8, events = 1000;
+		final CountDownLatch start = new CountDownLatch(1);
+		List<Thread> workers = new ArrayList<Thread>();
+		for (int t = 0; t < threads; t++) {
+			final int id = t;
+			Thread w = new Thread() {
+				public void run() {
+					try {
+						start.await();
+					} catch (InterruptedException e) {
+						return;
+					}
+					for (int i = 0; i < events; i++)
+						cache.add(id + "-" + i + "\n");
+				}
+			};
+			w.start();
+			workers.add(w);
+		}
+		start.countDown();
+		for (Thread w : workers)
+			w.join();
+		DrainReport report = cache.close(10, TimeUnit.SECONDS, null);
+		assertEquals(0, report.lostBatches);
+		Set<String> seen = new HashSet<String>();
+		synchronized (publisher.stored) {
+			for (String batch : publisher.stored)
+				for (String line : batch.split("\n"))
+					assertTrue("duplicate " + line, seen.add(line));
+		}
+		assertEquals(threads * events, seen.size());
+	}
+}
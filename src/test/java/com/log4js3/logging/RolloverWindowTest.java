@@ -0,0 +1,62 @@
+package com.log4js3.logging;
+
+import static org.junit.Assert.assertEquals;
+
+import java.util.TimeZone;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+public class RolloverWindowTest {
+	// 2019-06-08T13:20:34.567Z
+	static final long T = 1560000034567L;
+
+	private TimeZone defaultZone;
+
+	@Before
+	public void useUtc() {
+		defaultZone = TimeZone.getDefault();
+		TimeZone.setDefault(TimeZone.getTimeZone("UTC"));
+	}
+
+	@After
+	public void restoreZone() {
+		TimeZone.setDefault(defaultZone);
+	}
+
+	@Test
+	public void alignsMinutes() {
+		long start = RolloverWindow.MINUTE.start(T);
+		assertEquals(1560000000000L, start);
+		assertEquals(start + 60000L, RolloverWindow.MINUTE.end(start));
+	}
+
+	@Test
+	public void alignsHours() {
+		long start = RolloverWindow.HOUR.start(T);
+		assertEquals(1559998800000L, start);
+		assertEquals(start + 3600000L, RolloverWindow.HOUR.end(start));
+	}
+
+	@Test
+	public void alignsDays() {
+		long start = RolloverWindow.DAY.start(T);
+		assertEquals(1559952000000L, start);
+		assertEquals(start + 86400000L, RolloverWindow.DAY.end(start));
+	}
+
+	@Test
+	public void windowBoundaries() {
+		long start = RolloverWindow.HOUR.start(T);
+		assertEquals(start, RolloverWindow.HOUR.start(start));
+		assertEquals(start, RolloverWindow.HOUR.start(RolloverWindow.HOUR.end(start) - 1));
+		assertEquals(RolloverWindow.HOUR.end(start), RolloverWindow.HOUR.start(RolloverWindow.HOUR.end(start)));
+	}
+
+	@Test
+	public void noneIsOneUnboundedWindow() {
+		assertEquals(Long.MIN_VALUE, RolloverWindow.NONE.start(T));
+		assertEquals(Long.MAX_VALUE, RolloverWindow.NONE.end(Long.MIN_VALUE));
+	}
+}
@@ -0,0 +1,152 @@
+package com.log4js3.logging.aggregator;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Stream;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.log4js3.logging.PublishContext;
+import com.log4js3.logging.log4j.IPublishHelper;
+import com.log4js3.logging.log4j.S3LogAppender;
+
+public class LogAggregatorTest {
+	static final String TOKEN = "secret";
+
+	/**
+	 * Collects the batches published while the aggregator is unavailable.
+	 */
+	static class RecordingHelper implements IPublishHelper {
+		final List<String> stored = Collections.synchronizedList(new ArrayList<String>());
+		private final StringBuilder batch = new StringBuilder();
+
+		public void start(PublishContext context) {
+			batch.setLength(0);
+		}
+
+		public void publish(PublishContext context, String log) {
+			batch.append(log);
+		}
+
+		public void end(PublishContext context) {
+			stored.add(batch.toString());
+		}
+	}
+
+	private File dir;
+	private S3LogAppender appender;
+	private LogAggregator aggregator;
+
+	@Before
+	public void startAggregator() throws IOException {
+		dir = Files.createTempDirectory("aggregator").toFile();
+		appender = new S3LogAppender();
+		appender.setGzip(false);
+		appender.setFilePath(new File(dir, "out").getPath());
+		appender.setSpillDir(new File(dir, "spill").getPath());
+		appender.activateOptions();
+		aggregator = new LogAggregator(0, TOKEN, appender);
+		Thread t = new Thread(aggregator);
+		t.setDaemon(true);
+		t.start();
+	}
+
+	@After
+	public void stopAggregator() throws IOException {
+		aggregator.close();
+		appender.close();
+		try (Stream<Path> paths = Files.walk(dir.toPath())) {
+			Object[] all = paths.toArray();
+			for (int i = all.length - 1; i >= 0; i--)
+				((Path) all[i]).toFile().delete();
+		}
+	}
+
+	private static void send(AggregatorPublishHelper helper, String name, String logs) throws Exception {
+		PublishContext ctx = new PublishContext(name, null, null, false);
+		helper.start(ctx);
+		helper.publish(ctx, logs);
+		helper.endAsync(ctx).get(10, TimeUnit.SECONDS);
+	}
+
+	private String published() throws IOException {
+		StringBuilder sb = new StringBuilder();
+		File out = new File(dir, "out");
+		if (!out.exists())
+			return "";
+		try (Stream<Path> paths = Files.walk(out.toPath())) {
+			for (Object p : paths.filter(Files::isRegularFile).sorted().toArray())
+				sb.append(new String(Files.readAllBytes((Path) p), StandardCharsets.UTF_8));
+		}
+		return sb.toString();
+	}
+
+	@Test
+	public void stagesBatchesOfClients() throws Exception {
+		RecordingHelper fallback = new RecordingHelper();
+		AggregatorPublishHelper helper = new AggregatorPublishHelper(aggregator.getPort(), TOKEN, fallback);
+		send(helper, "one", "a\nb\n");
+		send(helper, "two", "c\n");
+		helper.close(1, TimeUnit.SECONDS);
+		appender.close();
+		assertTrue(fallback.stored.isEmpty());
+		String published = published();
+		assertEquals(published, 3, published.split("\n").length);
+		assertTrue(published.contains("a\nb\n"));
+		assertTrue(published.contains("c\n"));
+		// Journals are deleted once the appender stored the batches
+		assertEquals(0, new File(dir, "spill").list().length);
+	}
+
+	@Test
+	public void stagesRepublishedOpenBatchOnce() throws Exception {
+		AggregatorPublishHelper helper = new AggregatorPublishHelper(aggregator.getPort(), TOKEN, null);
+		send(helper, "open", "a\n");
+		send(helper, "open", "a\nb\n");
+		send(helper, "open", "a\nb\n");
+		helper.close(1, TimeUnit.SECONDS);
+		appender.close();
+		assertEquals("a\nb\n", published());
+	}
+
+	@Test
+	public void fallsBackOnWrongToken() throws Exception {
+		RecordingHelper fallback = new RecordingHelper();
+		AggregatorPublishHelper helper = new AggregatorPublishHelper(aggregator.getPort(), "wrong", fallback);
+		send(helper, "one", "a\n");
+		helper.close(1, TimeUnit.SECONDS);
+		appender.close();
+		assertEquals("[a\n]", fallback.stored.toString());
+		assertEquals("", published());
+	}
+
+	@Test(expected = IllegalArgumentException.class)
+	public void requiresToken() throws IOException {
+		new LogAggregator(0, "", appender);
+	}
+
+	@Test(expected = IllegalArgumentException.class)
+	public void requiresSpillDir() throws IOException {
+		S3LogAppender unjournaled = new S3LogAppender();
+		unjournaled.setGzip(false);
+		unjournaled.setFilePath(new File(dir, "other").getPath());
+		unjournaled.activateOptions();
+		try {
+			new LogAggregator(0, TOKEN, unjournaled);
+		} finally {
+			unjournaled.close();
+		}
+	}
+}
@@ -0,0 +1,64 @@
+package com.log4js3.logging.aws;
+
+import static org.junit.Assert.assertTrue;
+
+import java.io.InputStream;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
+
+import org.junit.Test;
+
+import com.amazonaws.services.s3.AmazonS3Client;
+import com.amazonaws.services.s3.model.ObjectMetadata;
+import com.amazonaws.services.s3.model.PutObjectResult;
+
+public class AsyncS3TransportTest {
+
+	/**
+	 * Holds every upload until released.
+	 */
+	static class GatedClient extends AmazonS3Client {
+		final CountDownLatch gate = new CountDownLatch(1);
+
+		@Override
+		public PutObjectResult putObject(String bucket, String key, InputStream input, ObjectMetadata metadata) {
+			try {
+				gate.await(10, TimeUnit.SECONDS);
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+			}
+			return new PutObjectResult();
+		}
+	}
+
+	@Test
+	public void interruptedWaitFailsUpload() throws Exception {
+		GatedClient client = new GatedClient();
+		AsyncS3Transport transport = new AsyncS3Transport(client, 1);
+		CompletableFuture<Void> first = transport.putObject("bucket", "one", new byte[1], new ObjectMetadata());
+		final AtomicReference<CompletableFuture<Void>> second = new AtomicReference<CompletableFuture<Void>>();
+		Thread publisher = new Thread() {
+			public void run() {
+				second.set(transport.putObject("bucket", "two", new byte[1], new ObjectMetadata()));
+			}
+		};
+		publisher.start();
+		// Waits for the only permit until interrupted
+		publisher.join(200);
+		assertTrue(publisher.isAlive());
+		publisher.interrupt();
+		publisher.join(10000);
+		try {
+			second.get().get(10, TimeUnit.SECONDS);
+			assertTrue("expected failure", false);
+		} catch (ExecutionException e) {
+			assertTrue(e.getCause() instanceof InterruptedException);
+		}
+		client.gate.countDown();
+		first.get(10, TimeUnit.SECONDS);
+		assertTrue(transport.close(10, TimeUnit.SECONDS));
+	}
+}
@@ -0,0 +1,80 @@
+package com.log4js3.logging.codec;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.nio.charset.StandardCharsets;
+
+import org.apache.log4j.Level;
+import org.apache.log4j.Logger;
+import org.apache.log4j.MDC;
+import org.apache.log4j.spi.LoggingEvent;
+import org.junit.After;
+import org.junit.Test;
+
+public class JsonLinesEncoderTest {
+
+	@After
+	public void clearMdc() {
+		MDC.remove("user");
+	}
+
+	private static String encode(LoggingEvent e) {
+		JsonLinesEncoder encoder = JsonLinesEncoder.forCurrentThread();
+		int len = encoder.encode(e);
+		return new String(encoder.buffer(), 0, len, StandardCharsets.UTF_8);
+	}
+
+	private static LoggingEvent event(long timeStamp, Level level, Object message, Throwable t) {
+		return new LoggingEvent(JsonLinesEncoderTest.class.getName(),
+			Logger.getLogger("com.acme.Foo"), timeStamp, level, message, t);
+	}
+
+	@Test
+	public void rendersFieldsAsOneLine() {
+		String line = encode(event(1560000000123L, Level.INFO, "hello", null));
+		assertEquals("{\"ts\":\"2019-06-08T13:20:00.123Z\",\"level\":\"INFO\",\"logger\":\"com.acme.Foo\","
+			+ "\"thread\":\"" + Thread.currentThread().getName() + "\",\"msg\":\"hello\"}\n", line);
+	}
+
+	@Test
+	public void escapesStrings() {
+		MDC.put("user", "a\"b");
+		String line = encode(event(0, Level.WARN, "q\" b\\ t\t n\n c\u0001 h\u00e9llo \u2603 \ud83d\ude00", null));
+		assertTrue(line, line.contains("\"mdc\":{\"user\":\"a\\\"b\"}"));
+		assertTrue(line, line.contains("\"msg\":\"q\\\" b\\\\ t\\t n\\n c\\u0001 h\u00e9llo \u2603 \ud83d\ude00\""));
+		assertEquals(1, line.split("\n", -1).length - 1);
+	}
+
+	@Test
+	public void rendersNullMessageAndThrowable() {
+		String line = encode(event(0, Level.ERROR, null, new RuntimeException("boom")));
+		assertTrue(line, line.contains("\"msg\":null"));
+		assertTrue(line, line.contains("\"throwable\":\"java.lang.RuntimeException: boom\\n"));
+	}
+
+	@Test
+	public void growsForLargeEvents() {
+		StringBuilder sb = new StringBuilder();
+		for (int i = 0; i < 100000; i++)
+			sb.append((char) ('a' + i % 26));
+		String message = sb.toString();
+		encode(event(0, Level.INFO, "small", null));
+		String line = encode(event(0, Level.INFO, message, null));
+		assertTrue(line.endsWith("\"msg\":\"" + message + "\"}\n"));
+		assertEquals(line.getBytes(StandardCharsets.UTF_8).length, JsonLinesEncoder.forCurrentThread().length());
+	}
+
+	@Test
+	public void dropsBufferAfterOversizedEvent() {
+		StringBuilder sb = new StringBuilder();
+		for (int i = 0; i < 1000000; i++)
+			sb.append('a');
+		JsonLinesEncoder encoder = JsonLinesEncoder.forCurrentThread();
+		int len = encoder.encode(event(0, Level.INFO, sb.toString(), null));
+		// Grown with what was written, not 6 bytes per char
+		assertTrue(encoder.buffer().length < 3 * len);
+		encode(event(0, Level.INFO, "small", null));
+		assertEquals(JsonLinesEncoder.DEFAULT_BUFFER_SIZE, encoder.buffer().length);
+	}
+}
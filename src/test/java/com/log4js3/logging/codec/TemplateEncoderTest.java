@@ -0,0 +1,69 @@
+package com.log4js3.logging.codec;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.IOException;
+
+import org.junit.Test;
+
+public class TemplateEncoderTest {
+
+	private static String roundTrip(String text) throws IOException {
+		return TemplateDecoder.decode(new TemplateEncoder().encode(text));
+	}
+
+	@Test
+	public void roundTripsLinesWithNumbers() throws IOException {
+		StringBuilder sb = new StringBuilder();
+		for (int i = 0; i < 200; i++) {
+			sb.append("2019-06-08 13:20:").append(i % 60).append(" INFO [pool-1-thread-").append(i % 7)
+				.append("] com.acme.Orders placed order ").append(1000000 + i * 37)
+				.append(" for -").append(i).append(".5 EUR in ").append(i * 3).append("ms\n");
+		}
+		String text = sb.toString();
+		assertEquals(text, roundTrip(text));
+	}
+
+	@Test
+	public void roundTripsEdgeCases() throws IOException {
+		String[] texts = {
+			"",
+			"\n",
+			"no trailing newline",
+			"\n\nempty lines\n\n",
+			"leading zeros 007 and 0 and 00\n",
+			"huge 123456789012345678901234567890 and " + Long.MAX_VALUE + " and " + Long.MIN_VALUE + "\n",
+			"h\u00e9llo \u2603 \ud83d\ude00 \t tab\r\n",
+			"1\n2\n3\n",
+		};
+		for (String text : texts)
+			assertEquals(text, roundTrip(text));
+	}
+
+	@Test
+	public void unpairedSurrogatesComeBackAsQuestionMarks() throws IOException {
+		assertEquals("a?b\n", roundTrip("a\ud800b\n"));
+	}
+
+	@Test
+	public void startsWithMagic() {
+		byte[] encoded = new TemplateEncoder().encode("x 1\n");
+		for (int i = 0; i < TemplateEncoder.MAGIC.length; i++)
+			assertEquals(TemplateEncoder.MAGIC[i], encoded[i]);
+	}
+
+	@Test(expected = IOException.class)
+	public void rejectsOtherData() throws IOException {
+		TemplateDecoder.decode("plain text".getBytes("UTF-8"));
+	}
+
+	@Test
+	public void repeatedTemplatesAreSmaller() {
+		StringBuilder sb = new StringBuilder();
+		for (int i = 0; i < 1000; i++)
+			sb.append("request ").append(i).append(" took ").append(i % 97).append(" ms\n");
+		byte[] encoded = new TemplateEncoder().encode(sb);
+		assertTrue(encoded.length < sb.length());
+	}
+}
@@ -0,0 +1,74 @@
+package com.log4js3.logging.index;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+
+import org.junit.Test;
+
+public class BloomFilterTest {
+
+	private static BloomFilter filled(int n, double fpp) {
+		BloomFilter filter = new BloomFilter(n, fpp);
+		for (int i = 0; i < n; i++)
+			filter.put("token-" + i);
+		return filter;
+	}
+
+	private static double falsePositiveRate(BloomFilter filter) {
+		int trials = 100000, hits = 0;
+		for (int i = 0; i < trials; i++)
+			if (filter.mightContain("absent-" + i))
+				hits++;
+		return (double) hits / trials;
+	}
+
+	@Test
+	public void hasNoFalseNegatives() {
+		BloomFilter filter = filled(1000, 0.01);
+		for (int i = 0; i < 1000; i++)
+			assertTrue(filter.mightContain("token-" + i));
+	}
+
+	@Test
+	public void keepsFalsePositivesNearTarget() {
+		double rate = falsePositiveRate(filled(1000, 0.01));
+		assertTrue("rate " + rate, rate < 0.02);
+	}
+
+	@Test
+	public void keepsFalsePositivesNearTargetForSmallFilters() {
+		for (int n = 1; n <= 8; n++) {
+			double rate = falsePositiveRate(filled(n, 0.01));
+			assertTrue("n " + n + " rate " + rate, rate < 0.02);
+		}
+	}
+
+	@Test
+	public void emptyFilterContainsNothing() {
+		assertFalse(new BloomFilter(0, 0.01).mightContain("x"));
+	}
+
+	@Test
+	public void roundTripsSerialized() throws IOException {
+		BloomFilter filter = filled(500, 0.01);
+		BloomFilter read = BloomFilter.readFrom(new ByteArrayInputStream(filter.toByteArray()));
+		for (int i = 0; i < 500; i++)
+			assertTrue(read.mightContain("token-" + i));
+		for (int i = 0; i < 1000; i++)
+			assertEquals(filter.mightContain("absent-" + i), read.mightContain("absent-" + i));
+	}
+
+	@Test(expected = IOException.class)
+	public void rejectsOtherData() throws IOException {
+		BloomFilter.readFrom(new ByteArrayInputStream("not a filter at all".getBytes("UTF-8")));
+	}
+
+	@Test(expected = IllegalArgumentException.class)
+	public void rejectsInvalidRate() {
+		new BloomFilter(10, 1);
+	}
+}
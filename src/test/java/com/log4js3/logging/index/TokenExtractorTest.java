@@ -0,0 +1,45 @@
+package com.log4js3.logging.index;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.Arrays;
+import java.util.HashSet;
+
+import org.junit.Test;
+
+public class TokenExtractorTest {
+
+	@Test
+	public void extractsMatchesOrFirstGroup() {
+		TokenExtractor extractor = new TokenExtractor();
+		extractor.addPattern("req-[0-9a-f]{4}");
+		extractor.addPattern("user=(\\w+)");
+		assertEquals(new HashSet<String>(Arrays.asList("req-00ab", "req-00cd", "alice", "bob")),
+			extractor.extract("req-00ab user=alice\nreq-00cd user=bob\nreq-00ab again\n"));
+	}
+
+	@Test
+	public void extractsMdcValuesFromJsonLines() {
+		TokenExtractor extractor = new TokenExtractor();
+		extractor.addMdcKey("order");
+		assertEquals(new HashSet<String>(Arrays.asList("o-1", "o\\\"2")),
+			extractor.extract("{\"mdc\":{\"order\":\"o-1\"},\"msg\":\"x\"}\n"
+				+ "{\"mdc\":{\"order\":\"o\\\"2\"},\"msg\":\"order\"}\n"));
+	}
+
+	@Test
+	public void matchesDoNotSpanLines() {
+		TokenExtractor extractor = new TokenExtractor();
+		extractor.addPattern("a\\s+b");
+		assertTrue(extractor.extract("a\nb\n").isEmpty());
+		assertEquals(new HashSet<String>(Arrays.asList("a b")), extractor.extract("a b"));
+	}
+
+	@Test
+	public void isEmptyWithoutPatterns() {
+		TokenExtractor extractor = new TokenExtractor();
+		assertTrue(extractor.isEmpty());
+		assertTrue(extractor.extract("anything\n").isEmpty());
+	}
+}
@@ -0,0 +1,260 @@
+package com.log4js3.logging.log4j;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Stream;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.log4js3.logging.EncodedBatch;
+import com.log4js3.logging.PublishContext;
+import com.log4js3.logging.index.BloomFilter;
+import com.log4js3.logging.index.TokenExtractor;
+
+public class CachePublisherTest {
+
+	/**
+	 * Keeps stored objects by name; optionally fails them or holds them until
+	 * released.
+	 */
+	static class RecordingHelper implements IEncodedPublishHelper {
+		final Map<String, EncodedBatch> stored = new ConcurrentHashMap<String, EncodedBatch>();
+		final List<String> order = Collections.synchronizedList(new ArrayList<String>());
+		volatile boolean failing;
+		volatile String failingSuffix;
+		volatile CountDownLatch gate;
+
+		public CompletableFuture<Void> publish(PublishContext context, EncodedBatch batch) {
+			CountDownLatch g = gate;
+			if (null != g) {
+				try {
+					g.await(10, TimeUnit.SECONDS);
+				} catch (InterruptedException e) {
+					Thread.currentThread().interrupt();
+				}
+			}
+			CompletableFuture<Void> f = new CompletableFuture<Void>();
+			String suffix = failingSuffix;
+			if (failing || (null != suffix && context.cacheName.endsWith(suffix))) {
+				f.completeExceptionally(new IOException("down"));
+			} else {
+				stored.put(context.cacheName, batch);
+				order.add(context.cacheName);
+				f.complete(null);
+			}
+			return f;
+		}
+
+		public void start(PublishContext context) {
+		}
+
+		public void publish(PublishContext context, String log) {
+		}
+
+		public void end(PublishContext context) {
+		}
+
+		String text(String name) {
+			return new String(stored.get(name).bytes, StandardCharsets.UTF_8);
+		}
+	}
+
+	private File dir;
+
+	@Before
+	public void createDir() throws IOException {
+		dir = Files.createTempDirectory("publisher").toFile();
+	}
+
+	@After
+	public void deleteDir() throws IOException {
+		try (Stream<Path> paths = Files.walk(dir.toPath())) {
+			Object[] all = paths.toArray();
+			for (int i = all.length - 1; i >= 0; i--)
+				((Path) all[i]).toFile().delete();
+		}
+	}
+
+	private static CompletableFuture<Void> publish(CachePublisher publisher, String name, String logs) {
+		PublishContext ctx = new PublishContext(name, null, null, false);
+		publisher.startPublish(ctx);
+		publisher.publish(ctx, logs);
+		return publisher.endPublishAsync(ctx);
+	}
+
+	@Test
+	public void fansOutToEveryDestination() throws Exception {
+		CachePublisher publisher = new CachePublisher(null, null, false);
+		RecordingHelper a = new RecordingHelper(), b = new RecordingHelper();
+		publisher.addHelper(a);
+		publisher.addHelper(b, 4, 2);
+		publish(publisher, "one", "a\nb\n").get(10, TimeUnit.SECONDS);
+		assertEquals("a\nb\n", a.text("one"));
+		assertEquals("a\nb\n", b.text("one"));
+		publisher.close(10, TimeUnit.SECONDS);
+	}
+
+	@Test
+	public void isolatesFailingDestinations() throws Exception {
+		CachePublisher publisher = new CachePublisher(null, null, false);
+		RecordingHelper ok = new RecordingHelper(), failing = new RecordingHelper();
+		failing.failing = true;
+		publisher.addHelper(failing);
+		publisher.addHelper(ok);
+		CompletableFuture<Void> f = publish(publisher, "one", "a\n");
+		try {
+			f.get(10, TimeUnit.SECONDS);
+			assertTrue("expected failure", false);
+		} catch (java.util.concurrent.ExecutionException e) {
+			// the batch is not stored everywhere
+		}
+		assertEquals("a\n", ok.text("one"));
+		assertArrayEquals(new long[] {1, 0}, publisher.getFailureCounts());
+		publisher.close(10, TimeUnit.SECONDS);
+	}
+
+	@Test
+	public void fullQueueSpillsOnlyThatDestination() throws Exception {
+		CachePublisher publisher = new CachePublisher(null, null, false);
+		RecordingHelper slow = new RecordingHelper(), fast = new RecordingHelper();
+		slow.gate = new CountDownLatch(1);
+		publisher.addHelper(slow, 1, 1);
+		publisher.addHelper(fast);
+		publisher.setSpillDir(dir);
+		List<CompletableFuture<Void>> futures = new ArrayList<CompletableFuture<Void>>();
+		// One running and one queued; the others are spilled without waiting
+		for (int i = 0; i < 5; i++)
+			futures.add(publish(publisher, "batch" + i, "event " + i + "\n"));
+		for (int i = 2; i < 5; i++)
+			futures.get(i).get(10, TimeUnit.SECONDS);
+		slow.gate.countDown();
+		for (CompletableFuture<Void> f : futures)
+			f.get(10, TimeUnit.SECONDS);
+		publisher.close(10, TimeUnit.SECONDS);
+		assertEquals(2, slow.stored.size());
+		assertEquals(5, fast.stored.size());
+		assertArrayEquals(new long[] {3, 0}, publisher.getFailureCounts());
+
+		// The spilled copies go to the slow destination only
+		CachePublisher next = new CachePublisher(null, null, false);
+		RecordingHelper slowAgain = new RecordingHelper(), fastAgain = new RecordingHelper();
+		next.addHelper(slowAgain);
+		next.addHelper(fastAgain);
+		next.setSpillDir(dir);
+		assertEquals(3, next.replaySpill(dir));
+		next.close(10, TimeUnit.SECONDS);
+		assertEquals("event 4\n", slowAgain.text("batch4"));
+		assertEquals(3, slowAgain.stored.size());
+		assertTrue(fastAgain.stored.isEmpty());
+		assertEquals(0, next.replaySpill(dir));
+	}
+
+	@Test
+	public void newerCopyReplacesSpilledOne() throws Exception {
+		CachePublisher publisher = new CachePublisher(null, null, false);
+		RecordingHelper helper = new RecordingHelper();
+		publisher.addHelper(helper);
+		publisher.setSpillDir(dir);
+		helper.failing = true;
+		publish(publisher, "open", "a\n").get(10, TimeUnit.SECONDS);
+		helper.failing = false;
+		publish(publisher, "open", "a\nb\n").get(10, TimeUnit.SECONDS);
+		publisher.close(10, TimeUnit.SECONDS);
+		assertEquals("a\nb\n", helper.text("open"));
+
+		// The stale copy would overwrite the newer object
+		CachePublisher next = new CachePublisher(null, null, false);
+		next.addHelper(new RecordingHelper());
+		assertEquals(0, next.replaySpill(dir));
+		next.close(10, TimeUnit.SECONDS);
+	}
+
+	@Test
+	public void republishedObjectsAreStoredInOrder() throws Exception {
+		CachePublisher publisher = new CachePublisher(null, null, false);
+		RecordingHelper helper = new RecordingHelper();
+		publisher.addHelper(helper, 4, 16);
+		List<CompletableFuture<Void>> futures = new ArrayList<CompletableFuture<Void>>();
+		StringBuilder logs = new StringBuilder();
+		for (int i = 0; i < 20; i++) {
+			logs.append(i).append('\n');
+			futures.add(publish(publisher, "open", logs.toString()));
+		}
+		for (CompletableFuture<Void> f : futures)
+			f.get(10, TimeUnit.SECONDS);
+		assertEquals(logs.toString(), helper.text("open"));
+		publisher.close(10, TimeUnit.SECONDS);
+	}
+
+	@Test
+	public void storesBloomIndexNextToBatch() throws Exception {
+		CachePublisher publisher = new CachePublisher(null, null, false);
+		TokenExtractor extractor = new TokenExtractor();
+		extractor.addPattern("req-[0-9a-f]{4}");
+		publisher.setTokenIndex(extractor, 0.01);
+		RecordingHelper helper = new RecordingHelper();
+		publisher.addHelper(helper);
+		publish(publisher, "one", "start req-00ab\nend req-00cd\n").get(10, TimeUnit.SECONDS);
+		publisher.close(10, TimeUnit.SECONDS);
+		EncodedBatch index = helper.stored.get("one" + CachePublisher.INDEX_SUFFIX);
+		BloomFilter filter = BloomFilter.readFrom(new ByteArrayInputStream(index.bytes));
+		assertTrue(filter.mightContain("req-00ab"));
+		assertTrue(filter.mightContain("req-00cd"));
+		assertEquals("start req-00ab\nend req-00cd\n", helper.text("one"));
+	}
+
+	@Test
+	public void storesBloomIndexBeforeBatch() throws Exception {
+		CachePublisher publisher = new CachePublisher(null, null, false);
+		TokenExtractor extractor = new TokenExtractor();
+		extractor.addPattern("req-[0-9a-f]{4}");
+		publisher.setTokenIndex(extractor, 0.01);
+		RecordingHelper helper = new RecordingHelper();
+		publisher.addHelper(helper, 4, 16);
+		publish(publisher, "open", "start req-00ab\n").get(10, TimeUnit.SECONDS);
+		publish(publisher, "open", "start req-00ab\nend req-00cd\n").get(10, TimeUnit.SECONDS);
+		publisher.close(10, TimeUnit.SECONDS);
+		assertEquals("[open.bloom, open, open.bloom, open]", helper.order.toString());
+	}
+
+	@Test
+	public void failedBloomIndexFailsBatch() throws Exception {
+		CachePublisher publisher = new CachePublisher(null, null, false);
+		TokenExtractor extractor = new TokenExtractor();
+		extractor.addPattern("req-[0-9a-f]{4}");
+		publisher.setTokenIndex(extractor, 0.01);
+		RecordingHelper helper = new RecordingHelper();
+		publisher.addHelper(helper);
+		publish(publisher, "open", "start req-00ab\n").get(10, TimeUnit.SECONDS);
+		helper.failingSuffix = CachePublisher.INDEX_SUFFIX;
+		try {
+			publish(publisher, "open", "start req-00ab\nend req-00cd\n").get(10, TimeUnit.SECONDS);
+			assertTrue("expected failure", false);
+		} catch (java.util.concurrent.ExecutionException e) {
+			// the object is not stored without its filter
+		}
+		publisher.close(10, TimeUnit.SECONDS);
+		assertEquals("start req-00ab\n", helper.text("open"));
+		BloomFilter filter = BloomFilter.readFrom(new ByteArrayInputStream(
+			helper.stored.get("open" + CachePublisher.INDEX_SUFFIX).bytes));
+		assertTrue(filter.mightContain("req-00ab"));
+	}
+}
@@ -0,0 +1,76 @@
+package com.log4js3.logging.log4j;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import org.apache.log4j.Level;
+import org.apache.log4j.Logger;
+import org.apache.log4j.spi.LoggingEvent;
+import org.junit.Test;
+
+public class RateLimitSamplerTest {
+	private final List<LoggingEvent> emitted = new ArrayList<LoggingEvent>();
+	private final IEventSink sink = new IEventSink() {
+		public void emit(LoggingEvent event) {
+			emitted.add(event);
+		}
+	};
+
+	private static LoggingEvent event(String logger, Level level) {
+		return new LoggingEvent(RateLimitSamplerTest.class.getName(),
+			Logger.getLogger(logger), System.currentTimeMillis(), level, "message", null);
+	}
+
+	@Test
+	public void letsBurstThroughThenDrops() {
+		RateLimitSampler sampler = new RateLimitSampler(4, 100, 0.001, 3, RateLimitSampler.KEY_LOGGER);
+		for (int i = 0; i < 3; i++)
+			assertTrue(sampler.offer(event("a", Level.INFO), sink));
+		for (int i = 0; i < 5; i++)
+			assertFalse(sampler.offer(event("a", Level.INFO), sink));
+		// Other loggers have their own bucket
+		assertTrue(sampler.offer(event("b", Level.INFO), sink));
+		assertEquals(5, sampler.getTotalDropped());
+		assertTrue(emitted.isEmpty());
+	}
+
+	@Test
+	public void reportsDropsOnFlush() {
+		RateLimitSampler sampler = new RateLimitSampler(4, 100, 0.001, 1, RateLimitSampler.KEY_LOGGER);
+		sampler.offer(event("a", Level.INFO), sink);
+		sampler.offer(event("a", Level.INFO), sink);
+		sampler.offer(event("a", Level.INFO), sink);
+		sampler.flush(sink);
+		assertEquals(1, emitted.size());
+		assertEquals("Sampling dropped 2 events for logger a", emitted.get(0).getRenderedMessage());
+		assertEquals("a", emitted.get(0).getLoggerName());
+	}
+
+	@Test
+	public void reportsDropsWhenBucketRefills() throws InterruptedException {
+		RateLimitSampler sampler = new RateLimitSampler(4, 100, 50, 1, RateLimitSampler.KEY_LOGGER);
+		assertTrue(sampler.offer(event("a", Level.INFO), sink));
+		assertFalse(sampler.offer(event("a", Level.INFO), sink));
+		Thread.sleep(100);
+		assertTrue(sampler.offer(event("a", Level.INFO), sink));
+		assertEquals(1, emitted.size());
+		assertEquals("Sampling dropped 1 events for logger a", emitted.get(0).getRenderedMessage());
+	}
+
+	@Test
+	public void keysByLevel() {
+		RateLimitSampler sampler = new RateLimitSampler(4, 100, 0.001, 1, RateLimitSampler.KEY_LEVEL);
+		assertTrue(sampler.offer(event("a", Level.INFO), sink));
+		assertFalse(sampler.offer(event("b", Level.INFO), sink));
+		assertTrue(sampler.offer(event("b", Level.ERROR), sink));
+	}
+
+	@Test(expected = IllegalArgumentException.class)
+	public void rejectsUnknownKey() {
+		new RateLimitSampler(4, 100, 1, 1, "thread");
+	}
+}
@@ -0,0 +1,89 @@
+package com.log4js3.logging.log4j;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import org.apache.log4j.Level;
+import org.apache.log4j.Logger;
+import org.apache.log4j.spi.LoggingEvent;
+import org.junit.Test;
+
+public class RepeatCollapserTest {
+	private final List<LoggingEvent> emitted = new ArrayList<LoggingEvent>();
+	private final IEventSink sink = new IEventSink() {
+		public void emit(LoggingEvent event) {
+			emitted.add(event);
+		}
+	};
+
+	private static LoggingEvent event(String logger, long timeStamp, String message) {
+		return new LoggingEvent(RepeatCollapserTest.class.getName(),
+			Logger.getLogger(logger), timeStamp, Level.WARN, message, null);
+	}
+
+	@Test
+	public void collapsesRepeatsIntoSummary() {
+		RepeatCollapser collapser = new RepeatCollapser(4, 100, 60000);
+		assertTrue(collapser.offer(event("a", 1000, "retry 1 of request 7f3a-01"), sink));
+		assertFalse(collapser.offer(event("a", 1001, "retry 2 of request 9c0b-02"), sink));
+		assertFalse(collapser.offer(event("a", 1002, "retry 3 of request 1e4d-03"), sink));
+		assertTrue(emitted.isEmpty());
+
+		assertTrue(collapser.offer(event("a", 1003, "gave up"), sink));
+		assertEquals(1, emitted.size());
+		LoggingEvent summary = emitted.get(0);
+		assertEquals("a", summary.getLoggerName());
+		assertEquals(Level.WARN, summary.getLevel());
+		assertEquals(1002, summary.timeStamp);
+		assertTrue(summary.getRenderedMessage(),
+			summary.getRenderedMessage().startsWith("Previous message repeated 2 more times"));
+	}
+
+	@Test
+	public void letsDifferentMessagesAndLoggersThrough() {
+		RepeatCollapser collapser = new RepeatCollapser(4, 100, 60000);
+		assertTrue(collapser.offer(event("a", 1000, "started"), sink));
+		assertTrue(collapser.offer(event("b", 1001, "started"), sink));
+		assertTrue(collapser.offer(event("a", 1002, "stopped"), sink));
+		collapser.flush(sink);
+		assertTrue(emitted.isEmpty());
+	}
+
+	@Test
+	public void startsNewRunAfterWindow() {
+		RepeatCollapser collapser = new RepeatCollapser(4, 100, 1000);
+		assertTrue(collapser.offer(event("a", 0, "tick"), sink));
+		assertFalse(collapser.offer(event("a", 500, "tick"), sink));
+		assertTrue(collapser.offer(event("a", 1000, "tick"), sink));
+		assertEquals(1, emitted.size());
+	}
+
+	@Test
+	public void flushesExpiredRuns() {
+		RepeatCollapser collapser = new RepeatCollapser(4, 100, 1000);
+		collapser.offer(event("a", 0, "tick"), sink);
+		collapser.offer(event("a", 1, "tick"), sink);
+		collapser.offer(event("b", 900, "tock"), sink);
+		collapser.offer(event("b", 901, "tock"), sink);
+		collapser.flushExpired(1000, sink);
+		assertEquals(1, emitted.size());
+		assertEquals("a", emitted.get(0).getLoggerName());
+		collapser.flush(sink);
+		assertEquals(2, emitted.size());
+		assertEquals("b", emitted.get(1).getLoggerName());
+	}
+
+	@Test
+	public void reportsRunsEvictedFromCache() {
+		RepeatCollapser collapser = new RepeatCollapser(1, 1, 60000);
+		collapser.offer(event("a", 0, "tick"), sink);
+		collapser.offer(event("a", 1, "tick"), sink);
+		collapser.offer(event("b", 2, "tock"), sink);
+		assertEquals(1, emitted.size());
+		assertEquals("a", emitted.get(0).getLoggerName());
+	}
+}
@@ -0,0 +1,84 @@
+package com.log4js3.logging.log4j;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import org.apache.log4j.Level;
+import org.apache.log4j.Logger;
+import org.apache.log4j.PatternLayout;
+import org.apache.log4j.spi.LoggingEvent;
+import org.junit.Test;
+
+public class S3LogAppenderTest {
+	static final Pattern LINE = Pattern.compile("\\d{4}-\\d\\d-\\d\\d \\d\\d:\\d\\d:\\d\\d,\\d{3} WARN \\[[^\\]]*\\] "
+		+ "repeat\\.\\d+ \\S+ (tick|Previous message repeated (\\d+) more times \\(.*\\))");
+
+	@Test
+	public void stagesSummariesConcurrentlyWithAppends() throws Exception {
+		// Neither the layout nor the list are thread safe; staging must be
+		// serialized by the appender
+		final List<String> staged = new ArrayList<String>();
+		final AtomicInteger staging = new AtomicInteger();
+		final AtomicBoolean overlapped = new AtomicBoolean();
+		final S3LogAppender appender = new S3LogAppender() {
+			@Override
+			void stage(LoggingEvent e) {
+				if (staging.incrementAndGet() > 1) overlapped.set(true);
+				staged.add(getLayout().format(e));
+				staging.decrementAndGet();
+			}
+		};
+		appender.setLayout(new PatternLayout("%d{ISO8601} %p [%t] %c %X{requestId} %m"));
+		appender.setCollapseRepeats(true);
+		appender.activateOptions();
+
+		final int threads = 4, events = 50000;
+		final AtomicBoolean done = new AtomicBoolean();
+		Thread flusher = new Thread() {
+			public void run() {
+				while (!done.get())
+					appender.flushExpiredRepeats(Long.MAX_VALUE);
+			}
+		};
+		flusher.start();
+		List<Thread> workers = new ArrayList<Thread>();
+		for (int t = 0; t < threads; t++) {
+			// Many loggers, so that every flush stages many summaries
+			final Logger[] loggers = new Logger[100];
+			for (int i = 0; i < loggers.length; i++)
+				loggers[i] = Logger.getLogger("repeat." + (t * loggers.length + i));
+			Thread w = new Thread() {
+				public void run() {
+					for (int i = 0; i < events; i++)
+						appender.doAppend(new LoggingEvent(S3LogAppenderTest.class.getName(),
+							loggers[i % loggers.length], System.currentTimeMillis(), Level.WARN, "tick", null));
+				}
+			};
+			w.start();
+			workers.add(w);
+		}
+		for (Thread w : workers)
+			w.join();
+		done.set(true);
+		flusher.join();
+		appender.close();
+		assertFalse("events were staged concurrently", overlapped.get());
+
+		// Every event is either staged or counted in exactly one summary
+		long accounted = 0;
+		for (String line : staged) {
+			Matcher m = LINE.matcher(line);
+			assertTrue(line, m.matches());
+			accounted += null == m.group(2) ? 1 : Long.parseLong(m.group(2));
+		}
+		assertEquals(threads * events, accounted);
+	}
+}